@@ -10,13 +10,27 @@ import org.apache.http.client.utils.DateUtils;
 import org.joda.time.DateTime;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Abstract base class for ESI reference endpoint synchronizers.
@@ -51,6 +65,89 @@ public abstract class AbstractESIRefSync<ServerDataType> implements ESIRefSynchr
   private static final String PROP_REF_COMMIT_BATCH_SIZE = "enterprises.orbital.evekit.ref_sync_mgr.commit_batch_size";
   private static final int DEF_REF_COMMIT_BATCH_SIZE = 200;
 
+  // Target duration (milliseconds) of each commit transaction.  If greater than zero, the commit batch size
+  // is adjusted automatically for each endpoint to meet this target, starting from the configured batch size
+  // and staying within the min and max batch size.  These may be set per endpoint by appending
+  // "." + endpoint name to the property name.
+  private static final String PROP_REF_COMMIT_TARGET_MILLIS = "enterprises.orbital.evekit.ref_sync_mgr.commit_target_millis";
+  private static final int DEF_REF_COMMIT_TARGET_MILLIS = 0;
+  private static final String PROP_REF_COMMIT_BATCH_MIN = "enterprises.orbital.evekit.ref_sync_mgr.commit_batch_min";
+  private static final int DEF_REF_COMMIT_BATCH_MIN = 10;
+  private static final String PROP_REF_COMMIT_BATCH_MAX = "enterprises.orbital.evekit.ref_sync_mgr.commit_batch_max";
+  private static final int DEF_REF_COMMIT_BATCH_MAX = 5000;
+
+  // If true, commit updates while server data is still being processed.  May be set per endpoint
+  // by appending "." + endpoint name to the property name.
+  private static final String PROP_REF_COMMIT_PIPELINE = "enterprises.orbital.evekit.ref_sync_mgr.commit_pipeline";
+  private static final boolean DEF_REF_COMMIT_PIPELINE = false;
+
+  // Maximum number of updates waiting to be committed when commits are pipelined
+  private static final String PROP_REF_COMMIT_QUEUE_SIZE = "enterprises.orbital.evekit.ref_sync_mgr.commit_queue_size";
+  private static final int DEF_REF_COMMIT_QUEUE_SIZE = 2000;
+
+  // Number of concurrent transactions used to commit updates.  May be set per endpoint by appending
+  // "." + endpoint name to the property name.  Only used by synchronizers which partition updates.
+  private static final String PROP_REF_COMMIT_PARALLELISM = "enterprises.orbital.evekit.ref_sync_mgr.commit_parallelism";
+  private static final int DEF_REF_COMMIT_PARALLELISM = 1;
+
+  // Page size used when retrieving stored data.  May be set per endpoint by appending "." + endpoint name.
+  private static final String PROP_REF_RETRIEVE_PAGE_SIZE = "enterprises.orbital.evekit.ref_sync_mgr.retrieve_page_size";
+  private static final int DEF_REF_RETRIEVE_PAGE_SIZE = 1000;
+
+  // Number of key ranges retrieved concurrently when retrieving stored data.  A value of 1 retrieves pages
+  // serially.  May be set per endpoint by appending "." + endpoint name.
+  private static final String PROP_REF_RETRIEVE_PARALLELISM = "enterprises.orbital.evekit.ref_sync_mgr.retrieve_parallelism";
+  private static final int DEF_REF_RETRIEVE_PARALLELISM = 1;
+
+  // If true, skip processing when server data is unchanged since the last successful update.  Disabled by
+  // default since a skipped update never repairs stored data which has drifted from the server.  May be set per
+  // endpoint by appending "." + endpoint name.
+  private static final String PROP_REF_FINGERPRINT = "enterprises.orbital.evekit.ref_sync_mgr.fingerprint";
+  private static final boolean DEF_REF_FINGERPRINT = false;
+
+  // If true, writes produced by each commit batch are grouped by entity type and flushed together.  If the flush
+  // fails, the writes are replayed one entity at a time.  May be set per endpoint by appending "." + endpoint name.
+  private static final String PROP_REF_BATCH_WRITES = "enterprises.orbital.evekit.ref_sync_mgr.batch_writes";
+  private static final boolean DEF_REF_BATCH_WRITES = false;
+
+  // If true, processed updates are written to a durable local journal and the sync is acknowledged immediately.
+  // Journaled updates are committed to the database in the background.  May be set per endpoint by appending
+  // "." + endpoint name.
+  private static final String PROP_REF_WRITE_BEHIND = "enterprises.orbital.evekit.ref_sync_mgr.write_behind";
+  private static final boolean DEF_REF_WRITE_BEHIND = false;
+
+  // Directory which holds the write behind journal
+  private static final String PROP_REF_JOURNAL_DIR = "enterprises.orbital.evekit.ref_sync_mgr.journal_dir";
+  private static final String DEF_REF_JOURNAL_DIR = "ref_sync_journal";
+
+  // Number of journaled updates committed in each transaction when applying the journal
+  private static final String PROP_REF_JOURNAL_BATCH_SIZE = "enterprises.orbital.evekit.ref_sync_mgr.journal_batch_size";
+  private static final int DEF_REF_JOURNAL_BATCH_SIZE = 1000;
+
+  // Milliseconds to wait before retrying a failed journal application
+  private static final String PROP_REF_JOURNAL_RETRY = "enterprises.orbital.evekit.ref_sync_mgr.journal_retry";
+  private static final long DEF_REF_JOURNAL_RETRY = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+
+  // Batch writer for the commit batch running on the current thread, if any
+  private static final ThreadLocal<ESIRefBatchWriter> batchWriter = new ThreadLocal<>();
+
+  // Number of synchronizations skipped because server data was unchanged, by endpoint
+  private static final Map<ESIRefSyncEndpoint, AtomicLong> skippedSyncs = new ConcurrentHashMap<>();
+
+  // Threads which retrieve key ranges of stored data
+  private static final ExecutorService retrieveExecutor = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "ref-sync-retrieve");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // Threads which run background commits
+  private static final ExecutorService commitExecutor = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "ref-sync-commit");
+    t.setDaemon(true);
+    return t;
+  });
+
   // Convenient attribute selector which matches any attribute
   public static final AttributeSelector ANY_SELECTOR = new AttributeSelector("{ any: true }");
 
@@ -100,21 +197,302 @@ public abstract class AbstractESIRefSync<ServerDataType> implements ESIRefSynchr
    * @return the list of results.
    * @throws IOException on any DB error.
    */
-  @SuppressWarnings("Duplicates")
   public static <A extends RefCachedData> List<A> retrieveAll(long time, QueryCaller<A> query) throws IOException {
+    List<A> results = new ArrayList<>();
+    try {
+      iterateAll(time, query).forEach(results::add);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return results;
+  }
+
+  /**
+   * Lazily iterate over all data items of the specified type live at the specified time.  Unlike
+   * {@link #retrieveAll}, only one page of results is held at a time.  The next page is queried when
+   * the current page has been consumed, and iteration ends when a query returns no results.  Each
+   * call to iterator() starts a new retrieval.
+   * <p>
+   * Database errors are thrown during iteration as an UncheckedIOException.  When thrown from
+   * {@link #processServerData}, the cause is unwrapped and handled as any other IOException.
+   *
+   * @param time  the "live" time for the retrieval.
+   * @param query an interface which performs the type appropriate query call.
+   * @param <A>   class of the object which will be returned.
+   * @return an iterable over the results.
+   */
+  public static <A extends RefCachedData> Iterable<A> iterateAll(long time, QueryCaller<A> query) {
+    final AttributeSelector ats = makeAtSelector(time);
+    return () -> new Iterator<A>() {
+      private long contid = 0;
+      private Iterator<A> page = Collections.emptyIterator();
+      private boolean exhausted;
+
+      @Override
+      public boolean hasNext() {
+        while (!page.hasNext() && !exhausted) {
+          List<A> nextBatch;
+          try {
+            nextBatch = query.query(contid, ats);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          if (nextBatch.isEmpty()) {
+            exhausted = true;
+          } else {
+            contid = nextBatch.get(nextBatch.size() - 1)
+                              .getCid();
+            page = nextBatch.iterator();
+          }
+        }
+        return page.hasNext();
+      }
+
+      @Override
+      public A next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return page.next();
+      }
+    };
+  }
+
+  /**
+   * Lazily stream all data items of the specified type live at the specified time.  Pages are
+   * retrieved as the stream is consumed, as described for {@link #iterateAll}.
+   *
+   * @param time  the "live" time for the retrieval.
+   * @param query an interface which performs the type appropriate query call.
+   * @param <A>   class of the object which will be returned.
+   * @return a sequential stream over the results.
+   */
+  public static <A extends RefCachedData> Stream<A> streamAll(long time, QueryCaller<A> query) {
+    return StreamSupport.stream(iterateAll(time, query).spliterator(), false);
+  }
+
+  // Interface which forwards a call to the class specific query function, with page size and direction, to retrieve data
+  public interface PagedQueryCaller<A extends RefCachedData> {
+    List<A> query(long contid, int maxResults, boolean reverse, AttributeSelector at) throws IOException;
+  }
+
+  /**
+   * Retrieve all data items of the specified type live at the specified time by splitting the cid key space
+   * into ranges which are retrieved concurrently.  The smallest and largest live cid are found first, then the
+   * span between them is split into up to parallelism equal ranges.  Each range is paged in cid order on its own
+   * thread (and therefore its own database connection), and the ranges are concatenated so that results are
+   * returned in cid order as with {@link #retrieveAll}.  Since queries have no upper cid bound, the final page
+   * of each range may overlap the next range.  These overlapping items are discarded.
+   *
+   * @param time        the "live" time for the retrieval.
+   * @param query       an interface which performs the type appropriate query call.
+   * @param pageSize    maximum number of results to retrieve in each query.
+   * @param parallelism maximum number of ranges to retrieve concurrently.
+   * @param executor    executor which runs range retrievals.
+   * @param <A>         class of the object which will be returned.
+   * @return the list of results.
+   * @throws IOException on any DB error.
+   */
+  public static <A extends RefCachedData> List<A> retrieveAllParallel(long time, PagedQueryCaller<A> query,
+                                                                      int pageSize, int parallelism,
+                                                                      ExecutorService executor) throws IOException {
     final AttributeSelector ats = makeAtSelector(time);
-    long contid = 0;
+    List<A> first = query.query(0, 1, false, ats);
+    if (first.isEmpty()) return new ArrayList<>();
+    List<A> last = query.query(Long.MAX_VALUE, 1, true, ats);
+    long low = first.get(0)
+                    .getCid() - 1;
+    long high = last.isEmpty() ? low + 1 : last.get(0)
+                                               .getCid();
+    long span = high - low;
+    int ranges = (int) Math.max(Math.min(parallelism, span), 1);
+
+    // Retrieve each range in the half open interval (start, end]
+    List<Future<List<A>>> parts = new ArrayList<>();
+    for (int i = 0; i < ranges; i++) {
+      final long start = low + span * i / ranges;
+      final long end = i == ranges - 1 ? high : low + span * (i + 1) / ranges;
+      parts.add(executor.submit(() -> {
+        List<A> results = new ArrayList<>();
+        long contid = start;
+        while (contid < end) {
+          List<A> nextBatch = query.query(contid, pageSize, false, ats);
+          if (nextBatch.isEmpty()) break;
+          for (A next : nextBatch) {
+            if (next.getCid() > end) break;
+            results.add(next);
+          }
+          contid = nextBatch.get(nextBatch.size() - 1)
+                            .getCid();
+        }
+        return results;
+      }));
+    }
+
+    // Merge ranges in cid order
     List<A> results = new ArrayList<>();
-    List<A> nextBatch = query.query(contid, ats);
-    while (!nextBatch.isEmpty()) {
-      results.addAll(nextBatch);
-      contid = nextBatch.get(nextBatch.size() - 1)
-                        .getCid();
-      nextBatch = query.query(contid, ats);
+    try {
+      for (Future<List<A>> next : parts) {
+        results.addAll(next.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    } finally {
+      for (Future<List<A>> next : parts) {
+        next.cancel(true);
+      }
     }
     return results;
   }
 
+  /**
+   * Retrieve all data items of the specified type live at the specified time, using the page size and
+   * parallelism configured for this endpoint.
+   *
+   * @param time  the "live" time for the retrieval.
+   * @param query an interface which performs the type appropriate query call.
+   * @param <A>   class of the object which will be returned.
+   * @return the list of results.
+   * @throws IOException on any DB error.
+   */
+  protected <A extends RefCachedData> List<A> retrieveLive(long time, PagedQueryCaller<A> query) throws IOException {
+    int pageSize = getEndpointProperty(PROP_REF_RETRIEVE_PAGE_SIZE, DEF_REF_RETRIEVE_PAGE_SIZE);
+    int parallelism = getEndpointProperty(PROP_REF_RETRIEVE_PARALLELISM, DEF_REF_RETRIEVE_PARALLELISM);
+    if (parallelism > 1) return retrieveAllParallel(time, query, pageSize, parallelism, retrieveExecutor);
+    return retrieveAll(time, (long contid, AttributeSelector at) -> query.query(contid, pageSize, false, at));
+  }
+
+  /**
+   * Iterate over all data items of the specified type live at the specified time, using the page size and
+   * parallelism configured for this endpoint.  If parallel retrieval is not configured, then pages are
+   * retrieved lazily as with {@link #iterateAll}.  Otherwise, all ranges are retrieved before this method returns.
+   *
+   * @param time  the "live" time for the retrieval.
+   * @param query an interface which performs the type appropriate query call.
+   * @param <A>   class of the object which will be returned.
+   * @return an iterable over the results.
+   * @throws IOException on any DB error during parallel retrieval.
+   */
+  protected <A extends RefCachedData> Iterable<A> iterateLive(long time,
+                                                              PagedQueryCaller<A> query) throws IOException {
+    int pageSize = getEndpointProperty(PROP_REF_RETRIEVE_PAGE_SIZE, DEF_REF_RETRIEVE_PAGE_SIZE);
+    int parallelism = getEndpointProperty(PROP_REF_RETRIEVE_PARALLELISM, DEF_REF_RETRIEVE_PARALLELISM);
+    if (parallelism > 1) return retrieveAllParallel(time, query, pageSize, parallelism, retrieveExecutor);
+    return iterateAll(time, (long contid, AttributeSelector at) -> query.query(contid, pageSize, false, at));
+  }
+
+  // Interface which extracts the natural key of a data item.  Keys must be unique within a data type.
+  public interface KeyExtractor<A extends RefCachedData> {
+    Object key(A item);
+  }
+
+  // Interface which retrieves an existing data item from the database
+  public interface ExistingLookup<A extends RefCachedData> {
+    A lookup() throws IOException;
+  }
+
+  // Live data items cached during processing, by type and natural key.  Cleared at the start and end of each sync.
+  private final Map<Class<?>, Map<Object, RefCachedData>> liveCache = new ConcurrentHashMap<>();
+
+  // Set while applying journaled updates, which may run concurrently with a sync filling the live cache
+  private static final ThreadLocal<Boolean> bypassLiveCache = ThreadLocal.withInitial(() -> false);
+
+  /**
+   * Cache data items retrieved during processing so that later commits can find existing items without
+   * querying the database.  Once any item of a given type has been cached, lookups for that type are
+   * resolved only from the cache, so the cached items must include every live item which could later be
+   * looked up.  This method may be called more than once for the same type, in which case the cached
+   * items are merged.  Items must be cached before any update which refers to them is added to the update list.
+   *
+   * @param type  type of the cached items.
+   * @param items live items to cache.
+   * @param key   extracts the natural key of each item.
+   * @param <A>   type of the cached items.
+   */
+  protected <A extends RefCachedData> void cacheLive(Class<A> type, Collection<A> items, KeyExtractor<A> key) {
+    Map<Object, RefCachedData> cache = liveCache.computeIfAbsent(type, k -> new ConcurrentHashMap<>());
+    for (A next : items) {
+      cache.put(key.key(next), next);
+    }
+  }
+
+  /**
+   * Cache a single data item retrieved during processing.  This is the streaming form of
+   * {@link #cacheLive(Class, Collection, KeyExtractor)} for use while iterating over stored items.
+   *
+   * @param type type of the cached item.
+   * @param item live item to cache.
+   * @param key  extracts the natural key of the item.
+   * @param <A>  type of the cached item.
+   */
+  protected <A extends RefCachedData> void cacheLive(Class<A> type, A item, KeyExtractor<A> key) {
+    liveCache.computeIfAbsent(type, k -> new ConcurrentHashMap<>())
+             .put(key.key(item), item);
+  }
+
+  /**
+   * Find the existing live item with the given natural key.  If items of this type were cached during
+   * processing, the item is resolved from the cache.  Otherwise, the lookup is used to query the database.
+   * Journaled updates are always resolved from the database, since the cache belongs to the current sync.
+   *
+   * @param type   type of the item to find.
+   * @param key    natural key of the item to find, as produced by the extractor passed to cacheLive.
+   * @param lookup database query used if no items of this type were cached.
+   * @param <A>    type of the item to find.
+   * @return the existing live item, or null if no such item exists.
+   * @throws IOException on any database error.
+   */
+  protected <A extends RefCachedData> A findLive(Class<A> type, Object key,
+                                                 ExistingLookup<A> lookup) throws IOException {
+    Map<Object, RefCachedData> cache = bypassLiveCache.get() ? null : liveCache.get(type);
+    return cache == null ? lookup.lookup() : type.cast(cache.get(key));
+  }
+
+  /**
+   * Reconcile items reported by the server with items currently stored, and schedule updates for the
+   * differences.  Server items which are new or which differ from their stored item are scheduled for update.
+   * Stored items which are no longer reported are scheduled for EOL.  Unchanged items are not scheduled.
+   * <p>
+   * Stored items which will be evolved are cached so that {@link #findLive} resolves them without a database
+   * query.  Every other item which could be committed is either new or EOL, and so is never looked up.
+   *
+   * @param time     synchronization time.
+   * @param type     type of the reconciled items.
+   * @param incoming items reported by the server.
+   * @param stored   items currently stored, normally from {@link #iterateLive}.
+   * @param key      extracts the primitive natural key of each item.
+   * @param cacheKey extracts the natural key of each item as used by findLive in commit.
+   * @param updates  list of objects to be updated.
+   * @param <A>      type of the reconciled items.
+   * @throws IOException on any database error while retrieving stored items.
+   */
+  protected <A extends RefCachedData> void reconcile(long time, Class<A> type, List<A> incoming, Iterable<A> stored,
+                                                     ESIRefReconciler.LongKey<A> key, KeyExtractor<A> cacheKey,
+                                                     List<RefCachedData> updates) throws IOException {
+    cacheLive(type, Collections.emptyList(), cacheKey);
+    new ESIRefReconciler<>(key).reconcile(incoming, stored, new ESIRefReconciler.Listener<A>() {
+      @Override
+      public void add(A next) {
+        updates.add(next);
+      }
+
+      @Override
+      public void evolve(A existing, A next) {
+        cacheLive(type, existing, cacheKey);
+        updates.add(next);
+      }
+
+      @Override
+      public void eol(A existing) {
+        existing.evolve(null, time);
+        updates.add(existing);
+      }
+    });
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -123,6 +501,34 @@ public abstract class AbstractESIRefSync<ServerDataType> implements ESIRefSynchr
     return "[" + getClass().getSimpleName() + "]";
   }
 
+  /**
+   * Retrieve an integer property which may be overridden for this endpoint.  The endpoint specific
+   * value is stored under the property name with "." + endpoint name appended.
+   *
+   * @param prop property name.
+   * @param def  default value if neither the endpoint specific nor the general property is set.
+   * @return the endpoint specific property value, or the general value if not set, or the default.
+   */
+  protected int getEndpointProperty(String prop, int def) {
+    return PersistentProperty.getIntegerPropertyWithFallback(prop + "." + endpoint().name(),
+                                                             PersistentProperty.getIntegerPropertyWithFallback(prop,
+                                                                                                               def));
+  }
+
+  /**
+   * Retrieve a boolean property which may be overridden for this endpoint.
+   *
+   * @param prop property name.
+   * @param def  default value if neither the endpoint specific nor the general property is set.
+   * @return the endpoint specific property value, or the general value if not set, or the default.
+   */
+  protected boolean getEndpointProperty(String prop, boolean def) {
+    return Boolean.valueOf(PersistentProperty.getPropertyWithFallback(prop + "." + endpoint().name(),
+                                                                      PersistentProperty.getPropertyWithFallback(prop,
+                                                                                                                 String.valueOf(
+                                                                                                                     def))));
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -170,7 +576,23 @@ public abstract class AbstractESIRefSync<ServerDataType> implements ESIRefSynchr
   protected void commit(
       long time,
       RefCachedData item) throws IOException {
-    RefCachedData.update(item);
+    store(item, false);
+  }
+
+  /**
+   * Write a data item.  If batched writes are enabled and a batch is being committed on this thread,
+   * then the write is deferred until the batch is flushed.  Otherwise, the item is written immediately.
+   *
+   * @param item  item to write.
+   * @param isNew true if the item is a new row, false if it may be a change to an existing row.
+   * @throws IOException on any database error
+   */
+  protected void store(RefCachedData item, boolean isNew) throws IOException {
+    ESIRefBatchWriter writer = batchWriter.get();
+    if (writer != null)
+      writer.add(item, isNew);
+    else
+      RefCachedData.update(item);
   }
 
   /**
@@ -187,10 +609,13 @@ public abstract class AbstractESIRefSync<ServerDataType> implements ESIRefSynchr
   /**
    * Process server data.  Normally, the subclass will extract server data into appropriate types
    * which are added to the update list (and later processed in the "commit" call).
+   * <p>
+   * The update list must be treated as write only.  If commits are pipelined, then updates are handed to
+   * commit workers as they are added and are not kept, so only add and size are supported.
    *
    * @param time    synchronization time.
    * @param data    server result previously retrieved via getServerData
-   * @param updates list of objects to be updated as a result of processing.
+   * @param updates list of objects to be updated as a result of processing.  Write only.
    * @throws IOException on any error which occurs while processing server data
    */
   protected abstract void processServerData(
@@ -212,18 +637,18 @@ public abstract class AbstractESIRefSync<ServerDataType> implements ESIRefSynchr
   protected void evolveOrAdd(long time, RefCachedData existing, RefCachedData update) throws IOException {
     if (update.getLifeStart() != 0) {
       // Existing element that is end of life (basically a delete).
-      RefCachedData.update(update);
+      store(update, false);
     } else if (existing != null) {
       if (!existing.equivalent(update)) {
         // Evolve
         existing.evolve(update, time);
-        RefCachedData.update(existing);
-        RefCachedData.update(update);
+        store(existing, false);
+        store(update, true);
       }
     } else {
       // New entity
       update.setup(time);
-      RefCachedData.update(update);
+      store(update, true);
     }
   }
 
@@ -247,6 +672,99 @@ public abstract class AbstractESIRefSync<ServerDataType> implements ESIRefSynchr
     return def;
   }
 
+  /**
+   * Utility method to extract the entity tag from an ESI response.  The tag may be passed back to ESI in
+   * an "If-None-Match" header, in which case ESI responds with 304 (not modified) if the data is unchanged.
+   *
+   * @param headers the response headers which may contain an "ETag" header.
+   * @return the entity tag, or null if the headers do not contain one.
+   */
+  protected static String extractETag(Map<String, List<String>> headers) {
+    try {
+      return headers.get("ETag")
+                    .get(0);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Priority of this endpoint's ESI calls when competing for global throttle tokens.  Endpoints whose
+   * data goes stale quickly should use a higher priority, and endpoints which make many calls per
+   * synchronization should use a lower priority.  Defaults to normal priority.
+   *
+   * @return the priority of ESI calls made by this synchronizer.
+   */
+  protected ESIRefThrottle.Priority throttlePriority() {
+    return ESIRefThrottle.Priority.NORMAL;
+  }
+
+  // Interface for a single ESI call
+  protected interface ESICall<T> {
+    ApiResponse<T> call() throws ApiException;
+  }
+
+  /**
+   * Make an ESI call for this endpoint.  The call first observes the endpoint's throttle.  The outcome
+   * of the call is then reported to the throttle so that adaptive rates and the error limit are tracked.
+   * The error limit is tracked from the headers of successful responses as well as failures.  A 304
+   * response to a conditional request is reported to the throttle as a success, but is still thrown as an
+   * ApiException by the ESI client.
+   *
+   * @param call the call to make.
+   * @param <T>  type of data returned by the call.
+   * @return the response from the call.
+   * @throws ApiException if the call fails.
+   * @throws IOException  if the throttle times out or is interrupted.
+   */
+  protected <T> ApiResponse<T> callESI(ESICall<T> call) throws ApiException, IOException {
+    String cls = endpoint().name();
+    ESIRefThrottle.throttle(cls, throttlePriority());
+    return invokeESI(cls, call);
+  }
+
+  /**
+   * Make an ESI call for this endpoint without blocking while waiting for the endpoint's throttle.  Once
+   * a permit is granted, the call is made on the given executor and its outcome is reported to the throttle
+   * as in {@link #callESI(ESICall)}.
+   *
+   * @param call     the call to make.
+   * @param executor executor which will make the call.
+   * @param <T>      type of data returned by the call.
+   * @return a future which completes with the response from the call.  The future completes exceptionally
+   * with an ApiException if the call fails, or an IOException if the throttle times out.
+   */
+  protected <T> CompletableFuture<ApiResponse<T>> callESIAsync(ESICall<T> call, Executor executor) {
+    String cls = endpoint().name();
+    return ESIRefThrottle.acquireAsync(cls, throttlePriority())
+                         .thenApplyAsync(waited -> {
+                           try {
+                             return invokeESI(cls, call);
+                           } catch (ApiException e) {
+                             throw new CompletionException(e);
+                           }
+                         }, executor);
+  }
+
+  private static <T> ApiResponse<T> invokeESI(String cls, ESICall<T> call) throws ApiException {
+    long start = System.currentTimeMillis();
+    try {
+      ApiResponse<T> response = call.call();
+      ESIRefThrottle.observe(response.getHeaders());
+      ESIRefThrottle.success(cls, System.currentTimeMillis() - start);
+      return response;
+    } catch (ApiException e) {
+      if (e.getCode() == HttpStatus.SC_NOT_MODIFIED) {
+        // Response to a conditional request, the caller already has the data
+        ESIRefThrottle.observe(e.getResponseHeaders());
+        ESIRefThrottle.success(cls, System.currentTimeMillis() - start);
+      } else {
+        ESIRefThrottle.failure(cls, e);
+      }
+      throw e;
+    }
+  }
+
   /**
    * Utility method to check for common problems with API responses.  The current list of common problems are:
    * <p>
@@ -264,6 +782,353 @@ public abstract class AbstractESIRefSync<ServerDataType> implements ESIRefSynchr
     if (response.getData() == null) throw new IOException("Response data is null");
   }
 
+  /**
+   * Determine whether commits should be pipelined with processing.  When pipelined, updates are handed to a
+   * background commit worker as they are produced by {@link #processServerData} and committed in batches
+   * while processing continues.  Note that processing may then observe data committed earlier in the same
+   * synchronization, so subclasses must not rely on reads made during processing being isolated from their
+   * own updates.  Defaults to the admin configured value.
+   *
+   * @return true if commits should be pipelined with processing, false otherwise.
+   */
+  protected boolean pipelineCommits() {
+    return getEndpointProperty(PROP_REF_COMMIT_PIPELINE, DEF_REF_COMMIT_PIPELINE);
+  }
+
+  /**
+   * Number of concurrent transactions which should be used to commit updates.  Updates are split into
+   * disjoint partitions by {@link #partitionKey}, and each partition is committed on its own connection.
+   * Defaults to the admin configured value.
+   *
+   * @return number of concurrent commit transactions.
+   */
+  protected int commitParallelism() {
+    return getEndpointProperty(PROP_REF_COMMIT_PARALLELISM, DEF_REF_COMMIT_PARALLELISM);
+  }
+
+  /**
+   * Determine the partition key of an update for parallel commits.  Updates with equal keys are
+   * committed in order by the same transaction stream.  Updates with different keys may be committed
+   * concurrently, so two updates which could touch the same stored item must always have equal keys.
+   * This is normally the natural key of the item, or a prefix of it.
+   * <p>
+   * The default implementation returns null, which commits all updates in a single stream.  Subclasses
+   * which override this method must return a non-null key for every update.
+   *
+   * @param item the update to partition.
+   * @return the partition key of the update, or null if updates can not be partitioned.
+   */
+  protected Object partitionKey(RefCachedData item) {
+    return null;
+  }
+
+  /**
+   * Determine the size of the next commit batch.  If a target commit duration is configured, the size is
+   * chosen by the batch controller for this endpoint.  Otherwise, the configured batch size is used.
+   *
+   * @param configured configured batch size.
+   * @return size of the next commit batch.
+   */
+  private int nextBatchSize(int configured) {
+    if (getEndpointProperty(PROP_REF_COMMIT_TARGET_MILLIS, DEF_REF_COMMIT_TARGET_MILLIS) <= 0) return configured;
+    return ESIRefCommitBatchController.get(endpoint())
+                                      .nextBatchSize(configured,
+                                                     getEndpointProperty(PROP_REF_COMMIT_BATCH_MIN,
+                                                                         DEF_REF_COMMIT_BATCH_MIN),
+                                                     getEndpointProperty(PROP_REF_COMMIT_BATCH_MAX,
+                                                                         DEF_REF_COMMIT_BATCH_MAX));
+  }
+
+  /**
+   * Feed the measured duration of a commit batch to the batch controller for this endpoint, if a target
+   * commit duration is configured.
+   *
+   * @param count number of updates in the batch.
+   * @param delay milliseconds needed to commit the batch.
+   */
+  private void recordBatch(int count, long delay) {
+    int target = getEndpointProperty(PROP_REF_COMMIT_TARGET_MILLIS, DEF_REF_COMMIT_TARGET_MILLIS);
+    if (target <= 0) return;
+    ESIRefCommitBatchController.get(endpoint())
+                               .record(count, delay, target,
+                                       getEndpointProperty(PROP_REF_COMMIT_BATCH_MIN, DEF_REF_COMMIT_BATCH_MIN),
+                                       getEndpointProperty(PROP_REF_COMMIT_BATCH_MAX, DEF_REF_COMMIT_BATCH_MAX));
+  }
+
+  /**
+   * Process server data, unwrapping any database error raised while lazily iterating over stored data.
+   *
+   * @param time    synchronization time.
+   * @param data    server result previously retrieved via getServerData
+   * @param updates list of objects to be updated as a result of processing.
+   * @throws IOException on any error which occurs while processing server data
+   */
+  private void process(long time, ESIRefServerResult<ServerDataType> data,
+                       List<RefCachedData> updates) throws IOException {
+    try {
+      processServerData(time, data, updates);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Commit a block of updates in a single transaction.
+   *
+   * @param syncTime synchronization time at which these updates will occur.
+   * @param block    the updates to commit.
+   * @throws IOException on any database error.
+   */
+  private void commitBatch(long syncTime, List<RefCachedData> block) throws IOException {
+    ESIRefBatchWriter writer = batchWrites() ? new ESIRefBatchWriter() : null;
+    // Time the whole transaction, since most database work is deferred until the commit
+    long start = OrbitalProperties.getCurrentTime();
+    try {
+      EveKitRefDataProvider.getFactory()
+                           .runTransaction(() -> {
+                             // Handle next block of commits.
+                             log.fine("Processing " + block.size() + " updates: " + getContext());
+                             batchWriter.set(writer);
+                             try {
+                               for (RefCachedData obj : block) {
+                                 commit(syncTime, obj);
+                               }
+                             } finally {
+                               batchWriter.remove();
+                             }
+                             if (writer != null) writer.flush(EveKitRefDataProvider.getFactory()
+                                                                                   .getEntityManager());
+                           });
+    } catch (Exception e) {
+      if (writer != null && writer.flushFailed()) {
+        // Batched write failed and was rolled back, so fall back to writing one entity at a time
+        log.log(Level.WARNING, "Batched write failed, replaying " + writer.size() + " writes: " + getContext(), e);
+        replayBatch(writer);
+        return;
+      }
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      log.log(Level.SEVERE, "query error: " + getContext(), e);
+      throw new IOException(e.getCause());
+    }
+    // Only batches which committed normally are fed to the batch controller
+    long end = OrbitalProperties.getCurrentTime();
+    long delay = end - start;
+    recordBatch(block.size(), delay);
+    if (log.isLoggable(Level.FINE)) {
+      // Commit commit rate if FINE if debugging
+      double rate = delay / (double) block.size();
+      log.fine("Process rate = " + rate + " milliseconds/update: " + getContext());
+    }
+  }
+
+  /**
+   * Replay the writes recorded by a failed batched write one entity at a time in a single transaction.
+   *
+   * @param writer the batch writer which failed to flush.
+   * @throws IOException on any database error.
+   */
+  private void replayBatch(ESIRefBatchWriter writer) throws IOException {
+    try {
+      EveKitRefDataProvider.getFactory()
+                           .runTransaction(writer::replay);
+    } catch (Exception e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      log.log(Level.SEVERE, "query error: " + getContext(), e);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Determine whether writes produced by each commit batch should be grouped by entity type and flushed
+   * together, rather than written one entity at a time.  Controlled by a property which may be overridden
+   * for this endpoint.
+   *
+   * @return true if batched writes should be used.
+   */
+  protected boolean batchWrites() {
+    return getEndpointProperty(PROP_REF_BATCH_WRITES, DEF_REF_BATCH_WRITES);
+  }
+
+  /**
+   * Process server data and store the resulting updates.  If write behind is enabled, then any pending journal
+   * segments are applied first, and the updates are journaled rather than committed.  If pending segments can
+   * not be applied, then the update fails without processing server data, since updates computed against
+   * stored data which does not yet include those segments could corrupt item lifetimes when replayed.  The
+   * pending segments are left to the background worker.
+   *
+   * @param syncTime   synchronization time at which updates will occur.
+   * @param serverData server result previously retrieved via getServerData
+   * @return true if journal segments are waiting for background commit, false if updates were committed.
+   * @throws IOException on any error which occurs while processing or storing updates.
+   */
+  private boolean processAndStore(long syncTime, ESIRefServerResult<ServerDataType> serverData) throws IOException {
+    boolean writeBehind = writeBehind();
+    if (writeBehind) {
+      // Stored data must reflect all earlier updates before new server data is processed
+      try {
+        int applied = ESIRefCommitJournal.applyPending(journalDir(), endpoint(), this::applyJournaled);
+        if (applied > 0) log.fine("Applied " + applied + " pending journal segments: " + getContext());
+      } catch (RuntimeException e) {
+        throw new IOException("Unable to apply pending journal segments", e);
+      }
+    }
+    int batchSize = PersistentProperty.getIntegerPropertyWithFallback(PROP_REF_COMMIT_BATCH_SIZE,
+                                                                      DEF_REF_COMMIT_BATCH_SIZE);
+    int commitQueueSize = PersistentProperty.getIntegerPropertyWithFallback(PROP_REF_COMMIT_QUEUE_SIZE,
+                                                                            DEF_REF_COMMIT_QUEUE_SIZE);
+    int parallelism = commitParallelism();
+
+    if (pipelineCommits() && !writeBehind) {
+      // Commit updates in batches as they are produced by the data processor.
+      log.fine("Processing server data and storing updates: " + getContext());
+      ESIRefCommitPipeline pipeline = new ESIRefCommitPipeline(commitQueueSize, () -> nextBatchSize(batchSize),
+                                                               (block) -> commitBatch(syncTime, block),
+                                                               commitExecutor, parallelism, this::partitionKey);
+      try {
+        process(syncTime, serverData, pipeline);
+      } catch (IOException | RuntimeException e) {
+        pipeline.abort();
+        throw e;
+      }
+      pipeline.close();
+      log.fine("Processed " + pipeline.size() + " total updates: " + getContext());
+    } else {
+      List<RefCachedData> updateList = new ArrayList<>();
+      log.fine("Processing server data: " + getContext());
+      process(syncTime, serverData, updateList);
+
+      if (writeBehind && !updateList.isEmpty()) {
+        // Journal updates for background commit.  If the journal can not be written, then commit directly.
+        try {
+          ESIRefCommitJournal.append(journalDir(), endpoint(), syncTime, updateList);
+          log.fine("Journaled " + updateList.size() + " total updates: " + getContext());
+          return true;
+        } catch (IOException e) {
+          log.log(Level.WARNING, "Unable to journal updates, committing directly: " + getContext(), e);
+        }
+      }
+
+      // Commit all updates.  We process updates in batches with sizes that can be varied dynamically by the
+      // admin as needed.  Smaller batches prevent long running transactions from tying up contended resources.
+      log.fine("Storing updates: " + getContext());
+      int count = updateList.size();
+      if (count > 0 && parallelism > 1) {
+        // Commit disjoint partitions of the update list concurrently
+        log.fine("Processing " + updateList.size() + " total updates with parallelism " + parallelism + ": " +
+                     getContext());
+        ESIRefCommitPipeline pipeline = new ESIRefCommitPipeline(commitQueueSize,
+                                                                 () -> nextBatchSize(batchSize),
+                                                                 (block) -> commitBatch(syncTime, block),
+                                                                 commitExecutor, parallelism,
+                                                                 this::partitionKey);
+        pipeline.addAll(updateList);
+        pipeline.close();
+      } else if (count > 0) {
+        log.fine("Processing " + updateList.size() + " total updates: " + getContext());
+        for (int i = 0, endIndex; i < count; i = endIndex) {
+          endIndex = Math.min(i + nextBatchSize(batchSize), count);
+          commitBatch(syncTime, updateList.subList(i, endIndex));
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Called once updates produced from server data have been stored, or journaled for background commit.
+   * Synchronizers which keep state derived from server data between synchronizations should only record
+   * that state here, so that data from a failed update is retrieved and processed again.  The default
+   * implementation does nothing.
+   *
+   * @param data server data previously retrieved via getServerData.
+   */
+  protected void updateStored(ServerDataType data) {}
+
+  /**
+   * Determine whether processed updates should be journaled and committed in the background.  Controlled
+   * by a property which may be overridden for this endpoint.
+   *
+   * @return true if write behind should be used.
+   */
+  protected boolean writeBehind() {
+    return getEndpointProperty(PROP_REF_WRITE_BEHIND, DEF_REF_WRITE_BEHIND);
+  }
+
+  private static Path journalDir() {
+    return Paths.get(PersistentProperty.getPropertyWithFallback(PROP_REF_JOURNAL_DIR, DEF_REF_JOURNAL_DIR));
+  }
+
+  /**
+   * Commit a segment of journaled updates in large batches.
+   *
+   * @param syncTime synchronization time at which these updates will occur.
+   * @param updates  the journaled updates.
+   * @throws IOException on any database error.
+   */
+  private void applyJournaled(long syncTime, List<RefCachedData> updates) throws IOException {
+    int batchSize = getEndpointProperty(PROP_REF_JOURNAL_BATCH_SIZE, DEF_REF_JOURNAL_BATCH_SIZE);
+    bypassLiveCache.set(true);
+    try {
+      for (int i = 0, endIndex; i < updates.size(); i = endIndex) {
+        endIndex = Math.min(i + Math.max(batchSize, 1), updates.size());
+        commitBatch(syncTime, updates.subList(i, endIndex));
+      }
+    } finally {
+      bypassLiveCache.remove();
+    }
+  }
+
+  /**
+   * Determine whether payload fingerprints should be used to skip processing of unchanged server data.
+   * Controlled by a property which may be overridden for this endpoint.
+   *
+   * @return true if payload fingerprints should be computed and compared.
+   */
+  protected boolean fingerprintPayloads() {
+    return getEndpointProperty(PROP_REF_FINGERPRINT, DEF_REF_FINGERPRINT);
+  }
+
+  /**
+   * Compute a stable digest of server data.  If the digest matches the digest stored with the current
+   * tracker, then the previous update already stored this data and processing is skipped.  The digest
+   * is stored as the context of the next tracker, unless the synchronizer provides its own context
+   * via {@link #getNextSyncContext()}.
+   * <p>
+   * The default implementation digests the string form of the data, which is stable for the generated
+   * ESI model classes.  Subclasses which use tracker context for other purposes, or whose server data
+   * does not have a stable string form, should override this method to return null.
+   *
+   * @param data server data previously retrieved via getServerData.
+   * @return digest of the server data, or null if the data should always be processed.
+   */
+  protected String computeFingerprint(ServerDataType data) {
+    if (data == null) return null;
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(String.valueOf(data)
+                                        .getBytes(StandardCharsets.UTF_8));
+      StringBuilder result = new StringBuilder(hash.length * 2);
+      for (byte next : hash) {
+        result.append(String.format("%02x", next));
+      }
+      return result.toString();
+    } catch (NoSuchAlgorithmException e) {
+      log.log(Level.WARNING, "Unable to compute fingerprint: " + getContext(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Retrieve the number of synchronizations skipped for an endpoint because server data was unchanged.
+   *
+   * @param endpoint the endpoint to check.
+   * @return number of skipped synchronizations since startup.
+   */
+  public static long getSkippedSyncCount(ESIRefSyncEndpoint endpoint) {
+    AtomicLong count = skippedSyncs.get(endpoint);
+    return count == null ? 0 : count.get();
+  }
+
   /**
    * Retrieve context to be stored with the next tracker we create for this synchronizer.
    * Context is only attached if the current synchronization succeeds.  Otherwise, the
@@ -322,62 +1187,38 @@ public abstract class AbstractESIRefSync<ServerDataType> implements ESIRefSynchr
       long syncTime = tracker.getSyncStart();
       long nextEvent;
       String nextContext;
+      boolean journaled = false;
+      liveCache.clear();
 
       try {
         // Retrieve server and process server data.  Any client or processing
         // errors will result in marking the tracker as in error with an endpoint
         // specific time for the next scheduled event.  Otherwise, the schedule time
         // returned by the data processor is used.
-        List<RefCachedData> updateList = new ArrayList<>();
         log.fine("Retrieving server data: " + getContext());
         ESIRefServerResult<ServerDataType> serverData = getServerData(cp);
         nextEvent = serverData.getExpiryTime();
-        log.fine("Processing server data: " + getContext());
-        processServerData(syncTime, serverData, updateList);
-        nextContext = getNextSyncContext();
-
-        // Commit all updates.  We process updates in batches with sizes that can be varied dynamically by the
-        // admin as needed.  Smaller batches prevent long running transactions from tying up contended resources.
-        log.fine("Storing updates: " + getContext());
-        int batchSize = PersistentProperty.getIntegerPropertyWithFallback(PROP_REF_COMMIT_BATCH_SIZE,
-                                                                          DEF_REF_COMMIT_BATCH_SIZE);
-        int count = updateList.size();
-        if (count > 0) {
-          log.fine("Processing " + updateList.size() + " total updates: " + getContext());
-          for (int i = 0, endIndex = Math.min(i + batchSize, count); i < count; i = endIndex, endIndex = Math.min(
-              i + batchSize, count)) {
-            List<RefCachedData> nextBlock = updateList.subList(i, endIndex);
-            try {
-              EveKitRefDataProvider.getFactory()
-                                   .runTransaction(() -> {
-                                     // Handle next block of commits.
-                                     log.fine("Processing " + nextBlock.size() + " updates: " + getContext());
-                                     long start = OrbitalProperties.getCurrentTime();
-                                     for (RefCachedData obj : nextBlock) {
-                                       commit(syncTime, obj);
-                                     }
-                                     long end = OrbitalProperties.getCurrentTime();
-                                     if (log.isLoggable(Level.FINE)) {
-                                       // Commit commit rate if FINE if debugging
-                                       long delay = end - start;
-                                       double rate = delay / (double) nextBlock.size();
-                                       log.fine("Process rate = " + rate + " milliseconds/update: " + getContext());
-                                     }
-                                   });
-            } catch (Exception e) {
-              if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
-              log.log(Level.SEVERE, "query error: " + getContext(), e);
-              throw new IOException(e.getCause());
-            }
-          }
+        String fingerprint = fingerprintPayloads() ? computeFingerprint(serverData.getData()) : null;
+        if (fingerprint != null && fingerprint.equals(tracker.getContext())) {
+          // Server data is unchanged since the last successful update, so there is nothing to process or store
+          log.fine("Server data unchanged, skipping update: " + getContext());
+          skippedSyncs.computeIfAbsent(endpoint(), k -> new AtomicLong())
+                      .incrementAndGet();
+          nextContext = fingerprint;
+          tracker.setStatus(ESISyncState.FINISHED);
+          tracker.setDetail("Updated successfully (unchanged)");
+        } else {
+          journaled = processAndStore(syncTime, serverData);
+          updateStored(serverData.getData());
+          nextContext = getNextSyncContext();
+          if (nextContext == null) nextContext = fingerprint;
+          log.fine("Update and store finished normally: " + getContext());
+          tracker.setStatus(ESISyncState.FINISHED);
+          tracker.setDetail("Updated successfully");
         }
-
-        log.fine("Update and store finished normally: " + getContext());
-        tracker.setStatus(ESISyncState.FINISHED);
-        tracker.setDetail("Updated successfully");
       } catch (ApiException e) {
-        // Client error while updating, mark the error in the tracker and exit
-        ESIRefThrottle.throttle(e);
+        // Client error while updating, mark the error in the tracker and exit.  The error was already reported
+        // to the throttle when the failed call returned.
         log.log(Level.WARNING, "ESI client error: " + getContext(), e);
         nextEvent = -1;
         nextContext = null;
@@ -391,6 +1232,16 @@ public abstract class AbstractESIRefSync<ServerDataType> implements ESIRefSynchr
         nextContext = null;
         tracker.setStatus(ESISyncState.ERROR);
         tracker.setDetail("Server error, contact the site admin if this problem persists");
+      } finally {
+        liveCache.clear();
+      }
+
+      // Commit any journaled updates in the background, including segments which could not be applied above
+      if (journaled || (writeBehind() && !ESIRefCommitJournal.pending(journalDir(), endpoint())
+                                                               .isEmpty())) {
+        ESIRefCommitJournal.scheduleApply(journalDir(), endpoint(), this::applyJournaled,
+                                          PersistentProperty.getLongPropertyWithFallback(PROP_REF_JOURNAL_RETRY,
+                                                                                         DEF_REF_JOURNAL_RETRY));
       }
 
       // Complete the tracker
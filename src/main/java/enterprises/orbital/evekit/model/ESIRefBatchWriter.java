@@ -0,0 +1,140 @@
+package enterprises.orbital.evekit.model;
+
+import javax.persistence.EntityManager;
+import javax.persistence.metamodel.EntityType;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the writes produced while committing a batch of updates so that they can be flushed together.
+ * Writes are grouped by entity type.  Within each type, changes to existing rows are merged first, then new
+ * rows are persisted, and the group is flushed as a unit.  Persisting new rows avoids the lookup which a
+ * merge performs for each entity, and flushing rows of a single type together allows the persistence
+ * provider to send them as JDBC batch statements.
+ * <p>
+ * Writes are also recorded in the order they were made.  If the flush fails, the transaction is rolled back
+ * and the writes may be replayed one entity at a time with {@link #replay()}.  New rows persisted before the
+ * failure were assigned ids which were never committed, so those ids are cleared and the entities detached
+ * before the writer can be replayed.
+ */
+class ESIRefBatchWriter {
+
+  // Changes to existing rows (evolved or EOL), by entity type
+  private final Map<Class<?>, List<RefCachedData>> merges = new LinkedHashMap<>();
+
+  // New rows, by entity type
+  private final Map<Class<?>, List<RefCachedData>> inserts = new LinkedHashMap<>();
+
+  // All writes in the order they were made
+  private final List<RefCachedData> ordered = new ArrayList<>();
+
+  // Set if the flush failed
+  private boolean flushFailed;
+
+  /**
+   * Record a write.
+   *
+   * @param item  the entity to write.
+   * @param isNew true if the entity is a new row, false if it is a change to an existing row.
+   */
+  void add(RefCachedData item, boolean isNew) {
+    (isNew ? inserts : merges).computeIfAbsent(item.getClass(), k -> new ArrayList<>())
+                              .add(item);
+    ordered.add(item);
+  }
+
+  /**
+   * @return the number of recorded writes.
+   */
+  int size() {
+    return ordered.size();
+  }
+
+  /**
+   * @return true if a previous call to flush failed and the recorded writes may be replayed.
+   */
+  boolean flushFailed() {
+    return flushFailed;
+  }
+
+  /**
+   * Write all recorded entities by type.  Must be called within a transaction.
+   *
+   * @param em entity manager for the current transaction.
+   */
+  void flush(EntityManager em) {
+    try {
+      List<Class<?>> types = new ArrayList<>(merges.keySet());
+      for (Class<?> next : inserts.keySet()) {
+        if (!merges.containsKey(next)) types.add(next);
+      }
+      for (Class<?> type : types) {
+        for (RefCachedData next : merges.getOrDefault(type, new ArrayList<>())) {
+          em.merge(next);
+        }
+        for (RefCachedData next : inserts.getOrDefault(type, new ArrayList<>())) {
+          em.persist(next);
+        }
+        em.flush();
+      }
+    } catch (RuntimeException e) {
+      try {
+        em.clear();
+        clearInsertIds(em);
+        flushFailed = true;
+      } catch (RuntimeException f) {
+        // Not safe to replay, so leave the failure to be reported as is
+        e.addSuppressed(f);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Reset the id of every new row to its unassigned value so that replay stores a new row rather than
+   * referring to a row which was rolled back.
+   *
+   * @param em entity manager used to look up the id attribute of each entity type.
+   */
+  private void clearInsertIds(EntityManager em) {
+    for (Map.Entry<Class<?>, List<RefCachedData>> next : inserts.entrySet()) {
+      EntityType<?> type = em.getMetamodel()
+                             .entity(next.getKey());
+      Member id = type.getId(type.getIdType()
+                                 .getJavaType())
+                      .getJavaMember();
+      if (!(id instanceof Field)) throw new IllegalStateException("Unsupported id mapping for " + next.getKey());
+      Field field = (Field) id;
+      field.setAccessible(true);
+      // Default value for the id type: zero for primitive ids, null otherwise
+      Object unassigned = field.getType()
+                               .isPrimitive() ? Array.get(Array.newInstance(field.getType(), 1), 0) : null;
+      try {
+        for (RefCachedData item : next.getValue()) {
+          field.set(item, unassigned);
+        }
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException("Unable to clear id for " + next.getKey(), e);
+      }
+    }
+  }
+
+  /**
+   * Write all recorded entities one at a time, in the order they were recorded.  Must be called within a
+   * transaction.
+   *
+   * @throws IOException on any database error.
+   */
+  void replay() throws IOException {
+    for (RefCachedData next : ordered) {
+      RefCachedData.update(next);
+    }
+  }
+
+}
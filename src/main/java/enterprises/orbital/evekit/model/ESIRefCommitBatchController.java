@@ -0,0 +1,69 @@
+package enterprises.orbital.evekit.model;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adjusts the commit batch size for an endpoint so that each commit transaction takes roughly a target
+ * amount of time.  The controller keeps a smoothed estimate of the time needed to commit a single update,
+ * which is refreshed after every batch, and sizes the next batch so that it is expected to meet the target.
+ * Batch sizes grow by at most a factor of two per batch, but may shrink immediately if commits slow down.
+ * <p>
+ * Controllers are shared by all synchronizers for the same endpoint and persist for the life of the JVM.
+ */
+class ESIRefCommitBatchController {
+
+  // Weight given to the most recent batch when updating the per-update commit time estimate
+  private static final double SMOOTHING = 0.3;
+
+  // Controllers by endpoint
+  private static final Map<ESIRefSyncEndpoint, ESIRefCommitBatchController> controllers = new ConcurrentHashMap<>();
+
+  // Estimated milliseconds to commit a single update, or negative if no estimate is available yet
+  private double rate = -1;
+
+  // Batch size to use for the next batch, or zero if no batch has been sized yet
+  private int batchSize;
+
+  ESIRefCommitBatchController() {}
+
+  static ESIRefCommitBatchController get(ESIRefSyncEndpoint endpoint) {
+    return controllers.computeIfAbsent(endpoint, k -> new ESIRefCommitBatchController());
+  }
+
+  /**
+   * Retrieve the size for the next batch.
+   *
+   * @param initial size to use if no batches have been committed yet.
+   * @param min     minimum batch size.
+   * @param max     maximum batch size.
+   * @return the size for the next batch.
+   */
+  synchronized int nextBatchSize(int initial, int min, int max) {
+    return clamp(batchSize > 0 ? batchSize : initial, min, max);
+  }
+
+  /**
+   * Record the time needed to commit a batch and compute the size for the next batch.
+   *
+   * @param count  number of updates in the batch.
+   * @param delay  milliseconds needed to commit the batch.
+   * @param target target milliseconds for each batch.
+   * @param min    minimum batch size.
+   * @param max    maximum batch size.
+   */
+  synchronized void record(int count, long delay, long target, int min, int max) {
+    if (count <= 0) return;
+    double next = delay / (double) count;
+    rate = rate < 0 ? next : SMOOTHING * next + (1 - SMOOTHING) * rate;
+    int current = batchSize > 0 ? batchSize : count;
+    // Avoid dividing by zero when commits are faster than the clock resolution
+    long desired = (long) (target / Math.max(rate, 0.01));
+    batchSize = clamp((int) Math.min(desired, 2L * current), min, max);
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return Math.max(Math.max(min, 1), Math.min(value, Math.max(min, max)));
+  }
+
+}
@@ -0,0 +1,381 @@
+package enterprises.orbital.evekit.model;
+
+import javax.persistence.Transient;
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Durable journal of processed updates which have not yet been committed to the database.  Each
+ * synchronization which uses the journal writes its updates to a segment file in the journal directory.
+ * The segment is forced to disk and atomically renamed into place before it is acknowledged, so a
+ * segment is either complete or absent.  Segments are applied to the database in order by a background
+ * worker, and are deleted once applied.  Segments which are not applied, for example because the
+ * database is unavailable or the process restarts, remain in the directory and are applied later.
+ * <p>
+ * Applying a segment is idempotent: updates are committed through the normal commit path which skips
+ * updates equivalent to the stored data, so a segment which was partially applied before a failure
+ * may be applied again from the beginning.
+ * <p>
+ * Segments use an explicit format rather than Java serialization, so that they remain readable when model
+ * classes change between releases.  A segment starts with a magic number and format version, followed by
+ * the endpoint, sync time and update count.  Each update is written as its class name followed by its
+ * persistent fields, which are the non-static, non-transient fields of the class and its superclasses
+ * (including the id and lifeline).  Each field is written as its name, a type tag and its value.  Fields
+ * which no longer exist are skipped when a segment is read, and fields which are not in the segment keep
+ * their default value.  If any update has a field of an unsupported type, then the append fails and the
+ * caller should commit the updates directly.
+ */
+class ESIRefCommitJournal {
+  private static final Logger log = Logger.getLogger(ESIRefCommitJournal.class.getName());
+
+  private static final String SUFFIX = ".journal";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  // Segment header
+  private static final int MAGIC = 0x454b524a;
+  private static final int VERSION = 1;
+
+  // Field value type tags
+  private static final byte TAG_NULL = 0;
+  private static final byte TAG_BOOLEAN = 1;
+  private static final byte TAG_BYTE = 2;
+  private static final byte TAG_SHORT = 3;
+  private static final byte TAG_CHAR = 4;
+  private static final byte TAG_INT = 5;
+  private static final byte TAG_LONG = 6;
+  private static final byte TAG_FLOAT = 7;
+  private static final byte TAG_DOUBLE = 8;
+  private static final byte TAG_STRING = 9;
+  private static final byte TAG_DECIMAL = 10;
+  private static final byte TAG_ENUM = 11;
+
+  // Interface to the code which commits the updates in a segment
+  interface Applier {
+    void apply(long syncTime, List<RefCachedData> updates) throws IOException;
+  }
+
+  // Locks which serialize application of segments for each endpoint
+  private static final Map<ESIRefSyncEndpoint, Object> locks = new ConcurrentHashMap<>();
+
+  // Distinguishes segments appended for the same endpoint and sync time
+  private static final AtomicLong sequence = new AtomicLong(System.currentTimeMillis());
+
+  // Endpoints with a background application scheduled
+  private static final Set<ESIRefSyncEndpoint> scheduled = ConcurrentHashMap.newKeySet();
+
+  // Thread which applies segments in the background
+  private static final ScheduledExecutorService applyExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "ref-sync-journal");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // Persistent fields by model class
+  private static final Map<Class<?>, List<Field>> fields = new ConcurrentHashMap<>();
+
+  // Singleton
+  private ESIRefCommitJournal() {}
+
+  /**
+   * Durably append a segment of updates for an endpoint.
+   *
+   * @param dir      journal directory.
+   * @param endpoint endpoint which produced the updates.
+   * @param syncTime synchronization time at which the updates will occur.
+   * @param updates  updates to journal.
+   * @throws IOException if the segment could not be written, including if any update has a field of an
+   *                     unsupported type.
+   */
+  static void append(Path dir, ESIRefSyncEndpoint endpoint, long syncTime,
+                     List<RefCachedData> updates) throws IOException {
+    Files.createDirectories(dir);
+    String name = String.format("%s.%019d.%019d", endpoint.name(), syncTime, sequence.incrementAndGet());
+    Path temp = dir.resolve(name + TEMP_SUFFIX);
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(endpoint.name());
+        out.writeLong(syncTime);
+        out.writeInt(updates.size());
+        for (RefCachedData next : updates) {
+          writeUpdate(out, next);
+        }
+        out.flush();
+        channel.force(true);
+      }
+      Files.move(temp, dir.resolve(name + SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+  }
+
+  /**
+   * List the segments waiting to be applied for an endpoint, in the order they were appended.
+   *
+   * @param dir      journal directory.
+   * @param endpoint the endpoint to list.
+   * @return the pending segments.
+   * @throws IOException on any error reading the journal directory.
+   */
+  static List<Path> pending(Path dir, ESIRefSyncEndpoint endpoint) throws IOException {
+    if (!Files.isDirectory(dir)) return new ArrayList<>();
+    String prefix = endpoint.name() + ".";
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.filter(x -> {
+        String name = x.getFileName()
+                       .toString();
+        return name.startsWith(prefix) && name.endsWith(SUFFIX);
+      })
+                  .sorted()
+                  .collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Apply all pending segments for an endpoint in order.  Each segment is deleted once applied.  If a
+   * segment fails to apply, then it and all later segments are left in place.
+   *
+   * @param dir      journal directory.
+   * @param endpoint the endpoint to apply.
+   * @param applier  commits the updates in each segment.
+   * @return the number of segments applied.
+   * @throws IOException if any segment fails to apply.
+   */
+  static int applyPending(Path dir, ESIRefSyncEndpoint endpoint, Applier applier) throws IOException {
+    synchronized (locks.computeIfAbsent(endpoint, k -> new Object())) {
+      int applied = 0;
+      for (Path next : pending(dir, endpoint)) {
+        long syncTime;
+        List<RefCachedData> updates = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(next)))) {
+          if (in.readInt() != MAGIC) throw new IOException("Not a journal segment: " + next);
+          int version = in.readInt();
+          if (version != VERSION)
+            throw new IOException("Unsupported journal segment version " + version + ": " + next);
+          if (!endpoint.name()
+                       .equals(in.readUTF())) throw new IOException("Journal segment endpoint mismatch: " + next);
+          syncTime = in.readLong();
+          int count = in.readInt();
+          for (int i = 0; i < count; i++) {
+            updates.add(readUpdate(in));
+          }
+        } catch (ReflectiveOperationException | ClassCastException | IllegalArgumentException e) {
+          throw new IOException("Unable to read journal segment: " + next, e);
+        }
+        log.fine("Applying " + updates.size() + " journaled updates from " + next);
+        applier.apply(syncTime, updates);
+        Files.delete(next);
+        applied++;
+      }
+      return applied;
+    }
+  }
+
+  /**
+   * Apply pending segments for an endpoint on the background worker.  If application fails, then it is
+   * retried after the given delay until it succeeds.  Does nothing if application is already scheduled
+   * for this endpoint.
+   *
+   * @param dir        journal directory.
+   * @param endpoint   the endpoint to apply.
+   * @param applier    commits the updates in each segment.
+   * @param retryDelay milliseconds to wait before retrying a failed application.
+   */
+  static void scheduleApply(Path dir, ESIRefSyncEndpoint endpoint, Applier applier, long retryDelay) {
+    if (scheduled.add(endpoint)) schedule(dir, endpoint, applier, retryDelay, 0);
+  }
+
+  /**
+   * Determine the persistent fields of a model class.  These are the non-static, non-transient fields of the
+   * class and its superclasses.  Field names must be unique so that they can be matched when read back.
+   *
+   * @param type the model class.
+   * @return the persistent fields, made accessible.
+   * @throws IOException if a field name is used more than once in the class hierarchy.
+   */
+  private static List<Field> persistentFields(Class<?> type) throws IOException {
+    List<Field> result = fields.get(type);
+    if (result != null) return result;
+    result = new ArrayList<>();
+    Set<String> names = new HashSet<>();
+    for (Class<?> next = type; next != null && next != Object.class; next = next.getSuperclass()) {
+      for (Field field : next.getDeclaredFields()) {
+        int mods = field.getModifiers();
+        if (Modifier.isStatic(mods) || Modifier.isTransient(mods) || field.isSynthetic() ||
+            field.isAnnotationPresent(Transient.class)) continue;
+        if (!names.add(field.getName()))
+          throw new IOException("Duplicate field " + field.getName() + " in " + type.getName());
+        field.setAccessible(true);
+        result.add(field);
+      }
+    }
+    fields.put(type, result);
+    return result;
+  }
+
+  private static void writeUpdate(DataOutputStream out, RefCachedData update) throws IOException {
+    List<Field> persistent = persistentFields(update.getClass());
+    out.writeUTF(update.getClass()
+                       .getName());
+    out.writeInt(persistent.size());
+    try {
+      for (Field next : persistent) {
+        out.writeUTF(next.getName());
+        writeValue(out, next.get(update));
+      }
+    } catch (IllegalAccessException e) {
+      throw new IOException("Unable to write " + update.getClass()
+                                                     .getName(), e);
+    }
+  }
+
+  private static RefCachedData readUpdate(DataInputStream in) throws IOException, ReflectiveOperationException {
+    Class<? extends RefCachedData> type = Class.forName(in.readUTF())
+                                               .asSubclass(RefCachedData.class);
+    Map<String, Field> byName = new HashMap<>();
+    for (Field next : persistentFields(type)) {
+      byName.put(next.getName(), next);
+    }
+    Constructor<? extends RefCachedData> constructor = type.getDeclaredConstructor();
+    constructor.setAccessible(true);
+    RefCachedData update = constructor.newInstance();
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      Field field = byName.get(in.readUTF());
+      Object value = readValue(in, field == null ? null : field.getType());
+      // Skip fields which no longer exist, and null values for fields which are now primitive
+      if (field != null && (value != null || !field.getType()
+                                                   .isPrimitive())) field.set(update, value);
+    }
+    return update;
+  }
+
+  private static void writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(TAG_NULL);
+    } else if (value instanceof Boolean) {
+      out.writeByte(TAG_BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Byte) {
+      out.writeByte(TAG_BYTE);
+      out.writeByte((Byte) value);
+    } else if (value instanceof Short) {
+      out.writeByte(TAG_SHORT);
+      out.writeShort((Short) value);
+    } else if (value instanceof Character) {
+      out.writeByte(TAG_CHAR);
+      out.writeChar((Character) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(TAG_INT);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(TAG_LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Float) {
+      out.writeByte(TAG_FLOAT);
+      out.writeFloat((Float) value);
+    } else if (value instanceof Double) {
+      out.writeByte(TAG_DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof String) {
+      out.writeByte(TAG_STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof BigDecimal) {
+      out.writeByte(TAG_DECIMAL);
+      writeString(out, value.toString());
+    } else if (value instanceof Enum) {
+      out.writeByte(TAG_ENUM);
+      writeString(out, ((Enum<?>) value).name());
+    } else {
+      throw new IOException("Unsupported journal field type: " + value.getClass()
+                                                                      .getName());
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static Object readValue(DataInputStream in, Class<?> type) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case TAG_NULL:
+        return null;
+      case TAG_BOOLEAN:
+        return in.readBoolean();
+      case TAG_BYTE:
+        return in.readByte();
+      case TAG_SHORT:
+        return in.readShort();
+      case TAG_CHAR:
+        return in.readChar();
+      case TAG_INT:
+        return in.readInt();
+      case TAG_LONG:
+        return in.readLong();
+      case TAG_FLOAT:
+        return in.readFloat();
+      case TAG_DOUBLE:
+        return in.readDouble();
+      case TAG_STRING:
+        return readString(in);
+      case TAG_DECIMAL:
+        return new BigDecimal(readString(in));
+      case TAG_ENUM:
+        String name = readString(in);
+        return type == null ? null : Enum.valueOf((Class<Enum>) type, name);
+      default:
+        throw new IOException("Unknown journal field tag: " + tag);
+    }
+  }
+
+  // Strings are written with an explicit length since DataOutput.writeUTF is limited to 64K bytes
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void schedule(Path dir, ESIRefSyncEndpoint endpoint, Applier applier, long retryDelay,
+                               long delay) {
+    applyExecutor.schedule(() -> {
+      scheduled.remove(endpoint);
+      try {
+        applyPending(dir, endpoint, applier);
+      } catch (IOException | RuntimeException e) {
+        log.log(Level.WARNING, "Failed to apply journal for " + endpoint + ", will retry in " + retryDelay + " ms",
+                e);
+        if (scheduled.add(endpoint)) schedule(dir, endpoint, applier, retryDelay, retryDelay);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+}
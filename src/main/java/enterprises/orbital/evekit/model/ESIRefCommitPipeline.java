@@ -0,0 +1,212 @@
+package enterprises.orbital.evekit.model;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Update list which hands updates to background commit workers as they are produced.  Processing code
+ * adds updates exactly as it would to a normal list.  Each update is staged in a bounded queue which
+ * is drained by a commit worker in batches.  This allows database commits to overlap with the
+ * remainder of server data processing.
+ * <p>
+ * A pipeline may have more than one lane.  Each lane has its own queue and commit worker, and updates
+ * are routed to a lane by the hash of their partition key.  Updates with the same key always land in
+ * the same lane and are committed in the order they were added.  Updates with a null key are routed to
+ * the first lane.
+ * <p>
+ * The list is write only.  Updates are not kept once they have been committed, so that a pipelined sync
+ * never holds more than the queued updates in memory.  Only {@link #add} and {@link #size} are supported,
+ * and any attempt to read updates back fails immediately.  If any commit worker fails, then any further
+ * updates are discarded and the failure is reported when the pipeline is closed.
+ */
+class ESIRefCommitPipeline extends AbstractList<RefCachedData> {
+  private static final Logger log = Logger.getLogger(ESIRefCommitPipeline.class.getName());
+
+  // How long producer and consumer wait on the queue before re-checking pipeline state
+  private static final long POLL_INTERVAL = 100L;
+
+  // Interface to the code which commits a batch of updates
+  interface BatchCommitter {
+    void commit(List<RefCachedData> batch) throws IOException;
+  }
+
+  // Interface to the code which determines the partition key of an update
+  interface Partitioner {
+    Object key(RefCachedData item);
+  }
+
+  private final List<BlockingQueue<RefCachedData>> queues = new ArrayList<>();
+  private final List<Future<?>> workers = new ArrayList<>();
+  private final IntSupplier batchSize;
+  private final BatchCommitter committer;
+  private final Partitioner partitioner;
+
+  // Number of updates added.  Only accessed by the producer.
+  private int added;
+
+  // Set by the producer when no more updates will be added
+  private volatile boolean closed;
+
+  // Set by the producer if processing fails and queued updates should be discarded
+  private volatile boolean aborted;
+
+  // Set by a worker if a commit fails
+  private volatile IOException failure;
+
+  /**
+   * Create a single lane pipeline and start its commit worker.
+   *
+   * @param capacity  maximum number of updates which may be queued but not yet committed.
+   * @param batchSize supplies the number of updates to commit in the next batch.
+   * @param committer commits each batch of updates.
+   * @param executor  executor which will run the commit worker.
+   */
+  ESIRefCommitPipeline(int capacity, IntSupplier batchSize, BatchCommitter committer, ExecutorService executor) {
+    this(capacity, batchSize, committer, executor, 1, null);
+  }
+
+  /**
+   * Create a pipeline and start one commit worker for each lane.
+   *
+   * @param capacity    maximum number of updates which may be queued but not yet committed, across all lanes.
+   * @param batchSize   supplies the number of updates to commit in the next batch.  Must be safe to call from
+   *                    several workers at once.
+   * @param committer   commits each batch of updates.  Must be safe to call from several workers at once.
+   * @param executor    executor which will run the commit workers.
+   * @param lanes       number of lanes.
+   * @param partitioner determines the partition key of each update.  May be null if there is only one lane.
+   */
+  ESIRefCommitPipeline(int capacity, IntSupplier batchSize, BatchCommitter committer, ExecutorService executor,
+                       int lanes, Partitioner partitioner) {
+    lanes = Math.max(lanes, 1);
+    this.batchSize = batchSize;
+    this.committer = committer;
+    this.partitioner = partitioner;
+    for (int i = 0; i < lanes; i++) {
+      BlockingQueue<RefCachedData> queue = new ArrayBlockingQueue<>(Math.max(capacity / lanes, 1));
+      queues.add(queue);
+      workers.add(executor.submit(() -> drain(queue)));
+    }
+  }
+
+  private int laneOf(RefCachedData item) {
+    if (queues.size() == 1) return 0;
+    Object key = partitioner.key(item);
+    return key == null ? 0 : Math.floorMod(key.hashCode(), queues.size());
+  }
+
+  @Override
+  public boolean add(RefCachedData item) {
+    added++;
+    modCount++;
+    int lane = laneOf(item);
+    BlockingQueue<RefCachedData> queue = queues.get(lane);
+    Future<?> worker = workers.get(lane);
+    try {
+      while (!aborted && failure == null && !worker.isDone()) {
+        // Wait for the commit worker to make room
+        if (queue.offer(item, POLL_INTERVAL, TimeUnit.MILLISECONDS)) break;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+      aborted = true;
+    }
+    return true;
+  }
+
+  @Override
+  public RefCachedData get(int index) {
+    throw new UnsupportedOperationException("Updates added to a commit pipeline can not be read back");
+  }
+
+  @Override
+  public Iterator<RefCachedData> iterator() {
+    throw new UnsupportedOperationException("Updates added to a commit pipeline can not be read back");
+  }
+
+  @Override
+  public int size() {
+    return added;
+  }
+
+  /**
+   * Signal that all updates have been added, then wait for the commit workers to store all queued updates.
+   *
+   * @throws IOException if any commit failed.
+   */
+  void close() throws IOException {
+    closed = true;
+    awaitWorkers();
+    if (aborted) throw new IOException("Commit pipeline interrupted");
+    if (failure != null) throw failure;
+  }
+
+  /**
+   * Discard any queued updates and wait for the commit workers to exit.  This method is called when
+   * processing fails.  Batches committed before this call are not reverted.
+   */
+  void abort() {
+    aborted = true;
+    closed = true;
+    try {
+      awaitWorkers();
+    } catch (IOException e) {
+      log.log(Level.FINE, "Error while aborting commit pipeline", e);
+    }
+  }
+
+  private void awaitWorkers() throws IOException {
+    IOException error = null;
+    for (Future<?> worker : workers) {
+      try {
+        worker.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread()
+              .interrupt();
+        aborted = true;
+        error = new IOException(e);
+      } catch (ExecutionException e) {
+        error = new IOException(e.getCause());
+      }
+    }
+    if (error != null) throw error;
+  }
+
+  private void drain(BlockingQueue<RefCachedData> queue) {
+    List<RefCachedData> batch = new ArrayList<>();
+    int limit = 0;
+    try {
+      while (!aborted && failure == null) {
+        RefCachedData next = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        if (next != null) {
+          // Size each batch when its first update arrives
+          if (batch.isEmpty()) limit = Math.max(batchSize.getAsInt(), 1);
+          batch.add(next);
+          if (batch.size() >= limit) {
+            committer.commit(batch);
+            batch.clear();
+          }
+        } else if (closed && queue.isEmpty()) {
+          // All updates have been queued and consumed, commit any stragglers and exit
+          if (!batch.isEmpty() && !aborted && failure == null) committer.commit(batch);
+          break;
+        }
+      }
+    } catch (IOException e) {
+      failure = e;
+    } catch (InterruptedException e) {
+      failure = new IOException(e);
+    } finally {
+      queue.clear();
+    }
+  }
+
+}
@@ -0,0 +1,84 @@
+package enterprises.orbital.evekit.model;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks the ESI error budget reported in the error limit headers of every response, successful or not.
+ * ESI allows a fixed number of errors per window, and reports the number of errors remaining and the
+ * seconds until the window resets.  The budget is used to slow down all calls gradually as the remaining
+ * budget shrinks, well before the budget is low enough to require a full stop.
+ * <p>
+ * There is a single budget for the JVM since ESI tracks errors by source address.  The budget is read on
+ * every response, so it is held in an immutable snapshot which is replaced atomically rather than locked.
+ */
+class ESIRefErrorBudget {
+
+  // Error limit reported by a response.  Immutable, so the budget can be read and updated without locking.
+  private static class State {
+    // Remaining errors, or negative if none have been reported
+    final int remain;
+    // Time (in milliseconds since the epoch) when the error window resets
+    final long resetAt;
+
+    State(int remain, long resetAt) {
+      this.remain = remain;
+      this.resetAt = resetAt;
+    }
+  }
+
+  // Most recently accepted error limit
+  private static final AtomicReference<State> state = new AtomicReference<>(new State(-1, 0));
+
+  private ESIRefErrorBudget() {}
+
+  /**
+   * Record the error limit reported by a response.
+   *
+   * @param remain errors remaining in the current window.
+   * @param reset  seconds until the current window resets.
+   * @param now    current time in milliseconds since the epoch.
+   */
+  static void update(int remain, int reset, long now) {
+    long nextReset = now + reset * 1000L;
+    State next = new State(remain, nextReset);
+    // Responses may arrive out of order, so within the same window only accept a lower remaining count
+    state.updateAndGet(current -> current.remain < 0 || now >= current.resetAt ||
+        nextReset > current.resetAt + 1000L || remain < current.remain ? next : current);
+  }
+
+  /**
+   * @param now current time in milliseconds since the epoch.
+   * @return errors remaining in the current window, or -1 if unknown or the window has reset.
+   */
+  static int getRemain(long now) {
+    State current = state.get();
+    return now < current.resetAt ? current.remain : -1;
+  }
+
+  /**
+   * @return time (in milliseconds since the epoch) when the current error window resets.
+   */
+  static long getResetAt() {
+    return state.get().resetAt;
+  }
+
+  /**
+   * Compute the fraction of the normal request rate which should be used given the remaining budget.
+   * The full rate is used while at least soft errors remain, or if the current window has reset.  Below
+   * that, the rate is reduced linearly, reaching the minimum fraction when hard errors remain.
+   *
+   * @param now     current time in milliseconds since the epoch.
+   * @param soft    remaining errors at or above which the full rate is used.
+   * @param hard    remaining errors at or below which the minimum rate is used.
+   * @param minimum minimum fraction of the normal rate.
+   * @return fraction of the normal rate to use.
+   */
+  static double factor(long now, int soft, int hard, double minimum) {
+    State current = state.get();
+    int remain = current.remain;
+    if (remain < 0 || now >= current.resetAt || remain >= soft) return 1.0;
+    if (remain <= hard || soft <= hard) return minimum;
+    return minimum + (1.0 - minimum) * (remain - hard) / (double) (soft - hard);
+  }
+
+}
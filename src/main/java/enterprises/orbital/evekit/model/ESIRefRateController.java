@@ -0,0 +1,97 @@
+package enterprises.orbital.evekit.model;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adjusts the ESI request rate for a throttle class using additive increase, multiplicative decrease.
+ * While calls succeed quickly, the rate is raised by a fixed amount at most once per adjustment interval.
+ * When a call shows signs of pressure (a low error limit, a 420 or 5xx response, or slow responses), the
+ * rate is cut by a fixed fraction, again at most once per adjustment interval so that a burst of failures
+ * from calls already in flight only counts once.  The rate always stays between a floor and a ceiling.
+ * <p>
+ * Controllers are shared by all callers of the same throttle class and persist for the life of the JVM.
+ */
+class ESIRefRateController {
+
+  // Controllers by throttle class
+  private static final Map<String, ESIRefRateController> controllers = new ConcurrentHashMap<>();
+
+  // Current rate in calls per second, or negative if the rate has not been initialized yet
+  private double rate = -1;
+
+  // Time (in milliseconds since the epoch) of the last rate change
+  private long lastAdjust;
+
+  private ESIRefRateController() {}
+
+  static ESIRefRateController get(String cls) {
+    return controllers.computeIfAbsent(cls, k -> new ESIRefRateController());
+  }
+
+  /**
+   * Retrieve the current rate.
+   *
+   * @param initial rate to use if the rate has not been adjusted yet.
+   * @param floor   minimum rate.
+   * @param ceiling maximum rate.
+   * @return the current rate in calls per second.
+   */
+  synchronized double rate(double initial, double floor, double ceiling) {
+    if (rate < 0) rate = initial;
+    return clamp(rate, floor, ceiling);
+  }
+
+  /**
+   * Restart the controller from a new rate, for example when the configured rate changes.
+   *
+   * @param initial the new rate in calls per second.
+   */
+  synchronized void reset(double initial) {
+    rate = initial;
+    lastAdjust = 0;
+  }
+
+  /**
+   * Record a healthy call and raise the rate if the adjustment interval has passed.
+   *
+   * @param now      current time in milliseconds since the epoch.
+   * @param interval minimum milliseconds between rate changes.
+   * @param increase calls per second to add.
+   * @param floor    minimum rate.
+   * @param ceiling  maximum rate.
+   * @return true if the rate changed.
+   */
+  synchronized boolean increase(long now, long interval, double increase, double floor, double ceiling) {
+    if (rate < 0 || now - lastAdjust < interval) return false;
+    return adjust(now, rate + increase, floor, ceiling);
+  }
+
+  /**
+   * Record a call under pressure and cut the rate if the adjustment interval has passed.
+   *
+   * @param now      current time in milliseconds since the epoch.
+   * @param interval minimum milliseconds between rate changes.
+   * @param factor   fraction of the current rate to keep.
+   * @param floor    minimum rate.
+   * @param ceiling  maximum rate.
+   * @return true if the rate changed.
+   */
+  synchronized boolean decrease(long now, long interval, double factor, double floor, double ceiling) {
+    if (rate < 0 || now - lastAdjust < interval) return false;
+    return adjust(now, rate * factor, floor, ceiling);
+  }
+
+  private boolean adjust(long now, double next, double floor, double ceiling) {
+    next = clamp(next, floor, ceiling);
+    if (next == rate) return false;
+    rate = next;
+    lastAdjust = now;
+    return true;
+  }
+
+  private static double clamp(double value, double floor, double ceiling) {
+    return Math.max(Math.max(floor, 0.1), Math.min(value, Math.max(floor, ceiling)));
+  }
+
+}
@@ -0,0 +1,162 @@
+package enterprises.orbital.evekit.model;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reconciles data items reported by the server with items currently stored.  Items are matched by a
+ * primitive long key.  Server items are indexed once, then stored items are consumed in a single pass.
+ * Only differences are reported to the listener:
+ * <p>
+ * <ul>
+ * <li>a stored item with no matching server item is end of life;</li>
+ * <li>a stored item which is not equivalent to its matching server item is evolved;</li>
+ * <li>a server item with no matching stored item is added.</li>
+ * </ul>
+ * Stored items which are equivalent to their server item are not reported.  If the server reports more
+ * than one item with the same key, then the last such item is used.
+ * <p>
+ * Keys composed of two integer values can be combined with {@link #pack(int, int)}.
+ *
+ * @param <A> type of the reconciled items.
+ */
+public class ESIRefReconciler<A extends RefCachedData> {
+
+  // Interface which extracts the natural key of an item.  Keys must be unique within a data type.
+  public interface LongKey<A> {
+    long key(A item);
+  }
+
+  // Interface which checks whether a stored item already reflects a server item.
+  public interface Equivalence<A> {
+    boolean equivalent(A stored, A incoming);
+  }
+
+  // Interface which receives the differences found during reconciliation.
+  public interface Listener<A> {
+    void add(A incoming) throws IOException;
+
+    void evolve(A stored, A incoming) throws IOException;
+
+    void eol(A stored) throws IOException;
+  }
+
+  private final LongKey<A> key;
+  private final Equivalence<A> equivalence;
+
+  /**
+   * Create a reconciler which compares items with {@link RefCachedData#equivalent(RefCachedData)}.
+   *
+   * @param key extracts the natural key of each item.
+   */
+  public ESIRefReconciler(LongKey<A> key) {
+    this(key, RefCachedData::equivalent);
+  }
+
+  /**
+   * Create a reconciler.
+   *
+   * @param key         extracts the natural key of each item.
+   * @param equivalence checks whether a stored item already reflects a server item.
+   */
+  public ESIRefReconciler(LongKey<A> key, Equivalence<A> equivalence) {
+    this.key = key;
+    this.equivalence = equivalence;
+  }
+
+  /**
+   * Combine two integer values into a single long key.
+   *
+   * @param high value stored in the upper 32 bits.
+   * @param low  value stored in the lower 32 bits.
+   * @return the combined key.
+   */
+  public static long pack(int high, int low) {
+    return ((long) high << 32) | (low & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Reconcile server items with stored items.  Stored items are consumed once, in order, and may be
+   * retrieved lazily.  Differences involving a stored item are reported as the stored item is consumed.
+   * Added items are reported, in server order, after all stored items have been consumed.
+   *
+   * @param incoming items reported by the server.
+   * @param stored   items currently stored.
+   * @param listener receives differences.
+   * @throws IOException if the listener throws IOException.
+   */
+  public void reconcile(List<A> incoming, Iterable<A> stored, Listener<A> listener) throws IOException {
+    int count = incoming.size();
+    LongIndex index = new LongIndex(count);
+    boolean[] matched = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      int replaced = index.put(key.key(incoming.get(i)), i);
+      // Only the last server item with a given key is reconciled
+      if (replaced >= 0) matched[replaced] = true;
+    }
+
+    for (A next : stored) {
+      int i = index.get(key.key(next));
+      if (i < 0) {
+        listener.eol(next);
+      } else if (!matched[i]) {
+        matched[i] = true;
+        A update = incoming.get(i);
+        if (!equivalence.equivalent(next, update)) listener.evolve(next, update);
+      }
+    }
+
+    for (int i = 0; i < count; i++) {
+      if (!matched[i]) listener.add(incoming.get(i));
+    }
+  }
+
+  /**
+   * Open addressing map from long keys to non-negative int values.  Avoids boxing keys into sets or maps.
+   */
+  private static class LongIndex {
+    private final long[] keys;
+    private final int[] values;
+    private final int mask;
+
+    LongIndex(int expected) {
+      // Keep the table at most half full
+      int capacity = Integer.highestOneBit(Math.max(expected, 1) * 2 - 1) << 1;
+      keys = new long[capacity];
+      values = new int[capacity];
+      Arrays.fill(values, -1);
+      mask = capacity - 1;
+    }
+
+    private int slot(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      int slot = (int) (h ^ (h >>> 32)) & mask;
+      while (values[slot] >= 0 && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    /**
+     * Store a value for a key.
+     *
+     * @return the value previously stored for this key, or -1 if none.
+     */
+    int put(long key, int value) {
+      int slot = slot(key);
+      int previous = values[slot];
+      keys[slot] = key;
+      values[slot] = value;
+      return previous;
+    }
+
+    /**
+     * @return the value stored for this key, or -1 if none.
+     */
+    int get(long key) {
+      return values[slot(key)];
+    }
+  }
+
+}
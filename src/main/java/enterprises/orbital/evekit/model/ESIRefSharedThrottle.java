@@ -0,0 +1,75 @@
+package enterprises.orbital.evekit.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Token buckets shared by all processes on the same host.  Each throttle key has a small state file in a
+ * shared directory which records the tokens available and the time they were last refilled.  A process
+ * takes a token by locking the file, refilling tokens for the time elapsed since the last update,
+ * consuming a token if one is available and writing the state back.  Since ESI tracks limits by source
+ * address, this lets several co-located sync nodes share a single request budget instead of each using
+ * the full configured rate.
+ * <p>
+ * Refill times are wall clock times, so all processes sharing a directory must share a clock.
+ */
+class ESIRefSharedThrottle {
+
+  private static final String SUFFIX = ".bucket";
+
+  // File locks are held by the JVM, so threads in the same JVM must also be serialized
+  private static final Map<Path, Object> locks = new ConcurrentHashMap<>();
+
+  private ESIRefSharedThrottle() {}
+
+  /**
+   * Try to take a token from the shared bucket for a key.  The bucket holds at most one second worth of tokens
+   * and is created full.
+   *
+   * @param dir  shared throttle directory.
+   * @param cls  throttle key.
+   * @param rate current rate for the key in calls per second.
+   * @return zero if a token was taken, otherwise the nanoseconds until a token is expected to be available.
+   * @throws IOException on any error accessing the bucket state.
+   */
+  static long tryAcquire(Path dir, String cls, double rate) throws IOException {
+    Path file = dir.resolve(cls + SUFFIX);
+    rate = Math.max(rate, 0.01);
+    double capacity = Math.max(Math.ceil(rate), 1);
+    synchronized (locks.computeIfAbsent(file, k -> new Object())) {
+      Files.createDirectories(dir);
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                  StandardOpenOption.WRITE);
+           FileLock ignored = channel.lock()) {
+        ByteBuffer state = ByteBuffer.allocate(16);
+        long now = System.currentTimeMillis();
+        double tokens = capacity;
+        if (channel.read(state, 0) == state.capacity()) {
+          state.flip();
+          tokens = state.getDouble();
+          long last = state.getLong();
+          tokens = Math.min(capacity, tokens + Math.max(now - last, 0) * rate / 1000.0);
+        }
+        long wait = 0;
+        if (tokens >= 1)
+          tokens -= 1;
+        else
+          wait = (long) Math.ceil((1 - tokens) / rate * 1000000000L);
+        state.clear();
+        state.putDouble(tokens)
+             .putLong(now)
+             .flip();
+        channel.write(state, 0);
+        return wait;
+      }
+    }
+  }
+
+}
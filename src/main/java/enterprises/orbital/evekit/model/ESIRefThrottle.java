@@ -3,12 +3,26 @@ package enterprises.orbital.evekit.model;
 import enterprises.orbital.base.PersistentProperty;
 import enterprises.orbital.eve.esi.client.invoker.ApiException;
 import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.BlockingStrategy;
 import io.github.bucket4j.Bucket;
 import io.github.bucket4j.Bucket4j;
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.ConsumptionProbe;
+import io.github.bucket4j.Refill;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,10 +30,58 @@ import java.util.logging.Logger;
  * Class to enforce specific request rates.  The API maps an arbitrary string key
  * to a token bucket which is used to enforce rate.  Each token bucket has a default
  * rate that can be customized according to the string key.
+ * <p>
+ * All state is lock free.  Buckets are created lazily on first use of each key, and
+ * an error limit pause is recorded as a shared "resume at" time which callers check
+ * before acquiring a permit.
+ * <p>
+ * An error limit pause is a global backoff window.  Noticing that the error limit is
+ * low starts or extends the window but never blocks the caller.  Blocking callers wait for
+ * the window to end before acquiring a permit, and asynchronous callers can use
+ * {@link #afterBackoff()} to be notified when the window ends.
+ * <p>
+ * If adaptive rates are enabled for a key, then the rate of the key's bucket is managed by an
+ * {@link ESIRefRateController} which is fed the outcome of each call through
+ * {@link #success(String, long)} and {@link #failure(String, ApiException)}.  The configured
+ * rate is then only used as the starting rate.
+ * <p>
+ * The error limit headers of every response are fed to a shared {@link ESIRefErrorBudget} through
+ * {@link #observe(Map)}.  As the remaining error budget shrinks, the rate of every bucket is scaled
+ * down gradually so that we rarely need to stop all calls with a backoff window.
+ * <p>
+ * If a shared throttle directory is configured, then each call must also take a token from an
+ * {@link ESIRefSharedThrottle} bucket for its key.  Shared buckets are refilled at the same rate
+ * as local buckets, so all processes using the same directory together observe the configured rate.
+ * <p>
+ * Configured rates are re-read periodically.  When a rate changes, the bandwidth of the key's
+ * bucket is replaced in place, keeping any tokens already accumulated.  All other configuration is
+ * re-read on the same schedule into a snapshot, so that acquiring a permit or recording the outcome
+ * of a call never reads properties.  Defaults apply until configuration is first read.
+ * <p>
+ * If a global rate is configured, then every call must also take a token from a single bucket
+ * shared by all keys in this JVM.  Calls have a {@link Priority}.  High priority calls may take
+ * any available global token, while lower priority calls must leave a reserve of tokens for
+ * higher priority calls.  A lower priority call which has waited too long ignores the reserve
+ * so that it can not be starved indefinitely.  Waiting calls are not queued by priority: a high
+ * priority call is never placed ahead of calls already waiting, it is only allowed to use the
+ * reserved tokens which lower priority calls must leave.  There is no global rate by default, so
+ * priorities have no effect until one is configured.  The reserve never includes every token of the
+ * global bucket, so at a global rate of one call per second there is no reserve.
+ * <p>
+ * Activity for each key is recorded by {@link ESIRefThrottleMetrics} and can be read with
+ * {@link #snapshot()}.
+ * <p>
+ * Callers which should not block a thread while waiting can use {@link #acquireAsync(String, Priority)},
+ * which returns a future completed by the throttle scheduler once a permit is granted.
  */
 public class ESIRefThrottle {
   private static final Logger log = Logger.getLogger(ESIRefThrottle.class.getName());
 
+  // Priority of a call when competing for global tokens
+  public enum Priority {
+    HIGH, NORMAL, LOW
+  }
+
   // Default rate throttle
   private static final String PROP_DEFAULT_ESI_RATE = "enterprises.orbital.evekit.ref.sync.default_esi_rate";
   private static final int DEF_DEFAULT_ESI_RATE = 3; // 3 calls/second
@@ -28,90 +90,815 @@ public class ESIRefThrottle {
   private static final String PROP_DEFAULT_ERROR_LIMIT_REMAIN = "enterprises.orbital.evekit.ref.sync.default_esi_error_limit_remain";
   private static final int DEF_DEFAULT_ERROR_LIMIT_REMAIN = 5;
 
+  // Maximum time a call will wait for a permit before timing out
+  private static final String PROP_MAX_THROTTLE_WAIT = "enterprises.orbital.evekit.ref.sync.max_throttle_wait";
+  private static final long DEF_MAX_THROTTLE_WAIT = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+
+  // Enable adaptive request rates
+  private static final String PROP_ADAPTIVE_RATE = "enterprises.orbital.evekit.ref.sync.esi_adaptive_rate";
+  private static final boolean DEF_ADAPTIVE_RATE = false;
+
+  // Minimum adaptive rate in calls/second
+  private static final String PROP_RATE_FLOOR = "enterprises.orbital.evekit.ref.sync.esi_rate_floor";
+  private static final int DEF_RATE_FLOOR = 1;
+
+  // Maximum adaptive rate in calls/second
+  private static final String PROP_RATE_CEILING = "enterprises.orbital.evekit.ref.sync.esi_rate_ceiling";
+  private static final int DEF_RATE_CEILING = 20;
+
+  // Calls/second added to the adaptive rate when calls are healthy
+  private static final String PROP_RATE_INCREASE = "enterprises.orbital.evekit.ref.sync.esi_rate_increase";
+  private static final int DEF_RATE_INCREASE = 1;
+
+  // Percentage of the adaptive rate kept when calls are under pressure
+  private static final String PROP_RATE_DECREASE = "enterprises.orbital.evekit.ref.sync.esi_rate_decrease";
+  private static final int DEF_RATE_DECREASE = 50;
+
+  // Minimum time between adaptive rate changes
+  private static final String PROP_RATE_ADJUST_INTERVAL = "enterprises.orbital.evekit.ref.sync.esi_rate_adjust_interval";
+  private static final long DEF_RATE_ADJUST_INTERVAL = TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS);
+
+  // Response time above which a call is considered to be under pressure
+  private static final String PROP_SLOW_RESPONSE = "enterprises.orbital.evekit.ref.sync.esi_slow_response";
+  private static final long DEF_SLOW_RESPONSE = TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS);
+
+  // Remaining error budget at or above which calls are not slowed down
+  private static final String PROP_ERROR_BUDGET_SOFT_LIMIT = "enterprises.orbital.evekit.ref.sync.esi_error_budget_soft_limit";
+  private static final int DEF_ERROR_BUDGET_SOFT_LIMIT = 50;
+
+  // Percentage of the normal rate used when the error budget is nearly exhausted
+  private static final String PROP_ERROR_BUDGET_MIN_RATE = "enterprises.orbital.evekit.ref.sync.esi_error_budget_min_rate";
+  private static final int DEF_ERROR_BUDGET_MIN_RATE = 10;
+
+  // Directory holding token buckets shared with other processes on this host.  Disabled if empty.
+  private static final String PROP_SHARED_THROTTLE_DIR = "enterprises.orbital.evekit.ref.sync.esi_shared_throttle_dir";
+  private static final String DEF_SHARED_THROTTLE_DIR = "";
+
+  // Interval at which configured rates are re-read
+  private static final String PROP_RATE_RELOAD_INTERVAL = "enterprises.orbital.evekit.ref.sync.esi_rate_reload_interval";
+  private static final long DEF_RATE_RELOAD_INTERVAL = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+
+  // Rate in calls/second of the bucket shared by all keys.  Disabled if zero, which is the default.  Call priorities
+  // only take effect when this rate is set.
+  private static final String PROP_GLOBAL_RATE = "enterprises.orbital.evekit.ref.sync.esi_global_rate";
+  private static final int DEF_GLOBAL_RATE = 0;
+
+  // Percentage of global tokens reserved for high priority calls.  Normal priority calls leave half this reserve.
+  private static final String PROP_PRIORITY_RESERVE = "enterprises.orbital.evekit.ref.sync.esi_priority_reserve";
+  private static final int DEF_PRIORITY_RESERVE = 25;
+
+  // Time after which a lower priority call ignores the reserve
+  private static final String PROP_PRIORITY_MAX_STARVE = "enterprises.orbital.evekit.ref.sync.esi_priority_max_starve";
+  private static final long DEF_PRIORITY_MAX_STARVE = TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS);
+
+  // Priority override for a key, appended with "." + key.  One of HIGH, NORMAL or LOW.
+  private static final String PROP_PRIORITY = "enterprises.orbital.evekit.ref.sync.esi_priority";
+
+  // Buckets refill over this many seconds so that fractional rates are honored
+  private static final int RATE_PERIOD = 10;
+
   // Throttle map
-  private static final Map<String, Bucket> throttleMap = new HashMap<>();
+  private static final Map<String, Bucket> throttleMap = new ConcurrentHashMap<>();
+
+  // Bucket shared by all keys, or null if there is no global rate
+  private static volatile Bucket globalBucket;
+
+  // Rate of the global bucket
+  private static volatile int globalRate;
+
+  // Rate currently applied to each bucket
+  private static final Map<String, Double> appliedRates = new ConcurrentHashMap<>();
+
+  // Configuration for each key when configuration was last read
+  private static final Map<String, KeyConfig> keyConfigs = new ConcurrentHashMap<>();
+
+  // Set once configuration has been read and periodic reloading has been scheduled
+  private static final AtomicBoolean reloadStarted = new AtomicBoolean(false);
+
+  // Configuration shared by all keys when configuration was last read
+  private static volatile int errorLimitRemain = DEF_DEFAULT_ERROR_LIMIT_REMAIN;
+  private static volatile int budgetSoftLimit = DEF_ERROR_BUDGET_SOFT_LIMIT;
+  private static volatile double budgetMinRate = DEF_ERROR_BUDGET_MIN_RATE / 100.0;
+  private static volatile int priorityReserve = DEF_PRIORITY_RESERVE;
+  private static volatile long maxStarve = TimeUnit.NANOSECONDS.convert(DEF_PRIORITY_MAX_STARVE,
+                                                                        TimeUnit.MILLISECONDS);
+  private static volatile Path sharedThrottleDir;
+
+  // Fraction of the normal rate currently applied to all buckets because of the error budget
+  private static volatile double budgetFactor = 1.0;
+
+  // Time (in milliseconds since the epoch) before which no calls should be made because we are close to the error limit
+  private static final AtomicLong resumeAt = new AtomicLong(0);
+
+  // Completes asynchronous waits when a backoff window ends
+  private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "ref-sync-throttle");
+    t.setDaemon(true);
+    return t;
+  });
 
   // Singleton
   private ESIRefThrottle() {}
 
+  /**
+   * Configuration for a single key.  Instances are immutable and replaced whenever configuration is re-read.
+   */
+  private static class KeyConfig {
+    private final int rate;
+    private final boolean adaptive;
+    private final int floor;
+    private final int ceiling;
+    private final int increase;
+    private final double decrease;
+    private final long adjustInterval;
+    private final long slowResponse;
+    private final long maxWait;
+    // Configured priority, or null to use the priority requested by the caller
+    private final Priority priority;
+
+    private KeyConfig(String cls) {
+      rate = configuredRate(cls);
+      adaptive = PersistentProperty.getBooleanPropertyWithFallback(PROP_ADAPTIVE_RATE + "." + cls,
+                                                                   PersistentProperty.getBooleanPropertyWithFallback(
+                                                                       PROP_ADAPTIVE_RATE, DEF_ADAPTIVE_RATE));
+      floor = getIntProperty(PROP_RATE_FLOOR, cls, DEF_RATE_FLOOR);
+      ceiling = getIntProperty(PROP_RATE_CEILING, cls, DEF_RATE_CEILING);
+      increase = getIntProperty(PROP_RATE_INCREASE, cls, DEF_RATE_INCREASE);
+      decrease = getIntProperty(PROP_RATE_DECREASE, cls, DEF_RATE_DECREASE) / 100.0;
+      adjustInterval = getLongProperty(PROP_RATE_ADJUST_INTERVAL, cls, DEF_RATE_ADJUST_INTERVAL);
+      slowResponse = getLongProperty(PROP_SLOW_RESPONSE, cls, DEF_SLOW_RESPONSE);
+      maxWait = TimeUnit.NANOSECONDS.convert(getLongProperty(PROP_MAX_THROTTLE_WAIT, cls, DEF_MAX_THROTTLE_WAIT),
+                                             TimeUnit.MILLISECONDS);
+      priority = configuredPriority(cls);
+    }
+  }
+
+  /**
+   * Retrieve the configuration for a key, reading it if this is the first use of the key.
+   *
+   * @param cls the key
+   * @return configuration for the key.
+   */
+  private static KeyConfig config(String cls) {
+    KeyConfig config = keyConfigs.get(cls);
+    if (config != null) return config;
+    if (reloadStarted.compareAndSet(false, true)) {
+      loadGlobalConfig();
+      scheduleReload();
+    }
+    return keyConfigs.computeIfAbsent(cls, KeyConfig::new);
+  }
+
   protected static Bucket get(String cls) {
-    synchronized (throttleMap) {
-      Bucket b = throttleMap.get(cls);
-      if (b == null) {
-        int rate = PersistentProperty.getIntegerPropertyWithFallback(cls + "_esi_rate",
-                                                                     PersistentProperty.getIntegerPropertyWithFallback(
-                                                                         PROP_DEFAULT_ESI_RATE + "." + cls,
-                                                                         PersistentProperty.getIntegerPropertyWithFallback(
-                                                                             PROP_DEFAULT_ESI_RATE,
-                                                                             DEF_DEFAULT_ESI_RATE)));
-        Bandwidth limit = Bandwidth.simple(rate, Duration.ofSeconds(1));
-        b = Bucket4j.builder()
-                    .addLimit(limit)
-                    .build();
-        throttleMap.put(cls, b);
+    return throttleMap.computeIfAbsent(cls, k -> {
+      double rate = getRate(k);
+      appliedRates.put(k, rate);
+      return Bucket4j.builder()
+                     .addLimit(bandwidth(rate))
+                     .build();
+    });
+  }
+
+  protected static int configuredRate(String cls) {
+    return PersistentProperty.getIntegerPropertyWithFallback(cls + "_esi_rate",
+                                                             PersistentProperty.getIntegerPropertyWithFallback(
+                                                                 PROP_DEFAULT_ESI_RATE + "." + cls,
+                                                                 PersistentProperty.getIntegerPropertyWithFallback(
+                                                                     PROP_DEFAULT_ESI_RATE,
+                                                                     DEF_DEFAULT_ESI_RATE)));
+  }
+
+  private static int getIntProperty(String prop, String cls, int def) {
+    return PersistentProperty.getIntegerPropertyWithFallback(prop + "." + cls,
+                                                             PersistentProperty.getIntegerPropertyWithFallback(prop,
+                                                                                                               def));
+  }
+
+  private static long getLongProperty(String prop, String cls, long def) {
+    return PersistentProperty.getLongPropertyWithFallback(prop + "." + cls,
+                                                          PersistentProperty.getLongPropertyWithFallback(prop, def));
+  }
+
+  private static ESIRefRateController controller(String cls, KeyConfig config) {
+    ESIRefRateController controller = ESIRefRateController.get(cls);
+    // Make sure the controller is initialized from the configured rate
+    controller.rate(config.rate, config.floor, config.ceiling);
+    return controller;
+  }
+
+  /**
+   * Read configuration shared by all keys.  The global bucket is created, replaced or removed if the
+   * global rate has changed.
+   */
+  private static void loadGlobalConfig() {
+    errorLimitRemain = PersistentProperty.getIntegerPropertyWithFallback(PROP_DEFAULT_ERROR_LIMIT_REMAIN,
+                                                                         DEF_DEFAULT_ERROR_LIMIT_REMAIN);
+    budgetSoftLimit = PersistentProperty.getIntegerPropertyWithFallback(PROP_ERROR_BUDGET_SOFT_LIMIT,
+                                                                        DEF_ERROR_BUDGET_SOFT_LIMIT);
+    budgetMinRate = PersistentProperty.getIntegerPropertyWithFallback(PROP_ERROR_BUDGET_MIN_RATE,
+                                                                      DEF_ERROR_BUDGET_MIN_RATE) / 100.0;
+    priorityReserve = PersistentProperty.getIntegerPropertyWithFallback(PROP_PRIORITY_RESERVE,
+                                                                        DEF_PRIORITY_RESERVE);
+    maxStarve = TimeUnit.NANOSECONDS.convert(
+        PersistentProperty.getLongPropertyWithFallback(PROP_PRIORITY_MAX_STARVE, DEF_PRIORITY_MAX_STARVE),
+        TimeUnit.MILLISECONDS);
+    String dir = PersistentProperty.getPropertyWithFallback(PROP_SHARED_THROTTLE_DIR, DEF_SHARED_THROTTLE_DIR);
+    sharedThrottleDir = dir == null || dir.isEmpty() ? null : Paths.get(dir);
+    applyGlobalRate(PersistentProperty.getIntegerPropertyWithFallback(PROP_GLOBAL_RATE, DEF_GLOBAL_RATE));
+  }
+
+  /**
+   * Retrieve the rate currently applied to a key.
+   *
+   * @param cls the key
+   * @return rate in calls per second.
+   */
+  public static double getRate(String cls) {
+    KeyConfig config = config(cls);
+    double rate = config.adaptive ? ESIRefRateController.get(cls)
+                                                        .rate(config.rate, config.floor, config.ceiling) : config.rate;
+    return rate * budgetFactor;
+  }
+
+  static Bandwidth bandwidth(double rate) {
+    long capacity = Math.max((long) Math.ceil(rate), 1);
+    long tokens = Math.max(Math.round(rate * RATE_PERIOD), 1);
+    return Bandwidth.classic(capacity, Refill.smooth(tokens, Duration.ofSeconds(RATE_PERIOD)));
+  }
+
+  /**
+   * Replace the bandwidth of the bucket for a key with the current rate for the key.  Tokens
+   * already in the bucket are kept.
+   */
+  private static void applyRate(String cls) {
+    Bucket bucket = throttleMap.get(cls);
+    if (bucket == null) return;
+    synchronized (bucket) {
+      double rate = getRate(cls);
+      BucketConfiguration config = Bucket4j.configurationBuilder()
+                                           .addLimit(bandwidth(rate))
+                                           .buildConfiguration();
+      bucket.replaceConfiguration(config);
+      appliedRates.put(cls, rate);
+      log.fine("ESI rate for " + cls + " is now " + rate + " calls/second");
+    }
+  }
+
+  /**
+   * Re-read all configuration, including the configured rate of every bucket, and apply any changes.  If the
+   * configured rate of a key with an adaptive rate changes, then the adaptive rate restarts from the new
+   * configured rate.  This is called periodically, but may also be called to apply a change immediately.
+   */
+  public static void reloadRates() {
+    loadGlobalConfig();
+    for (String cls : keyConfigs.keySet()) {
+      KeyConfig config = new KeyConfig(cls);
+      KeyConfig previous = keyConfigs.put(cls, config);
+      if (previous != null && previous.rate != config.rate) {
+        log.info("Configured ESI rate for " + cls + " changed from " + previous.rate + " to " + config.rate);
+        if (config.adaptive) ESIRefRateController.get(cls)
+                                                 .reset(config.rate);
       }
-      return b;
+      Double applied = appliedRates.get(cls);
+      if (applied == null || Math.abs(applied - getRate(cls)) > 0.001) applyRate(cls);
     }
   }
 
-  protected static int extractErrorLimitRemain(ApiException e, int def) {
+  private static void scheduleReload() {
+    scheduler.schedule(() -> {
+      try {
+        reloadRates();
+      } catch (RuntimeException e) {
+        log.log(Level.WARNING, "Error reloading ESI rates", e);
+      } finally {
+        scheduleReload();
+      }
+    }, PersistentProperty.getLongPropertyWithFallback(PROP_RATE_RELOAD_INTERVAL, DEF_RATE_RELOAD_INTERVAL),
+                       TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Capture the current state of every throttle key along with activity recorded since startup.
+   *
+   * @return a snapshot of throttle state.
+   */
+  public static ESIRefThrottleSnapshot snapshot() {
+    Map<String, ESIRefThrottleSnapshot.KeyStats> keys = new HashMap<>();
+    for (Map.Entry<String, Bucket> next : throttleMap.entrySet()) {
+      String cls = next.getKey();
+      ESIRefThrottleMetrics metrics = ESIRefThrottleMetrics.get(cls);
+      keys.put(cls, new ESIRefThrottleSnapshot.KeyStats(cls, appliedRates.getOrDefault(cls, 0.0),
+                                                        next.getValue()
+                                                            .getAvailableTokens(),
+                                                        metrics.getAcquired(), metrics.getRate(),
+                                                        metrics.getTimeouts(), metrics.getWaitMillis(),
+                                                        metrics.getWaitHistogram()));
+    }
+    return new ESIRefThrottleSnapshot(System.currentTimeMillis(), isBackingOff(), getBackoffRemaining(),
+                                      ESIRefThrottleMetrics.getPauses(), ESIRefThrottleMetrics.getPauseMillis(),
+                                      ESIRefThrottleMetrics.getLastErrorLimitRemain(), budgetFactor, keys);
+  }
+
+  /**
+   * @return the rate currently applied to each key in calls per second.
+   */
+  public static Map<String, Double> getEffectiveRates() {
+    return Collections.unmodifiableMap(new HashMap<>(appliedRates));
+  }
+
+  /**
+   * Record a successful call.  If adaptive rates are enabled for this key, then the rate is raised
+   * if the call was fast, or lowered if the call was slow.
+   *
+   * @param cls     class of the call
+   * @param latency milliseconds needed to complete the call
+   */
+  public static void success(String cls, long latency) {
+    KeyConfig config = config(cls);
+    if (!config.adaptive) return;
+    ESIRefRateController controller = controller(cls, config);
+    long now = System.currentTimeMillis();
+    boolean changed;
+    if (latency > config.slowResponse)
+      changed = controller.decrease(now, config.adjustInterval, config.decrease, config.floor, config.ceiling);
+    else
+      changed = controller.increase(now, config.adjustInterval, config.increase, config.floor, config.ceiling);
+    if (changed) applyRate(cls);
+  }
+
+  /**
+   * Record a failed call.  This always observes the error limit as in {@link #throttle(ApiException)}.
+   * If adaptive rates are enabled for this key, then the rate is lowered if the failure indicates
+   * pressure: a low remaining error limit, a 420 (error limited) response or a server error.
+   *
+   * @param cls class of the call
+   * @param e   ApiException thrown by the call
+   */
+  public static void failure(String cls, ApiException e) {
+    throttle(e);
+    KeyConfig config = config(cls);
+    if (!config.adaptive) return;
+    int code = e.getCode();
+    boolean pressure = code == 420 || code >= 500 ||
+        extractErrorLimitRemain(e, Integer.MAX_VALUE) < errorLimitRemain;
+    if (pressure && controller(cls, config).decrease(System.currentTimeMillis(), config.adjustInterval,
+                                                     config.decrease, config.floor, config.ceiling))
+      applyRate(cls);
+  }
+
+  /**
+   * Sleep until any backoff window has ended.  The window may be extended while we sleep,
+   * so we re-check after waking.  If the window would outlast the maximum wait for the call,
+   * then the call fails immediately rather than sleeping.
+   *
+   * @param cls     class of the call.
+   * @param start   time (from {@link System#nanoTime()}) at which the call started waiting.
+   * @param maxWait maximum nanoseconds the call may wait.
+   * @throws ESIRefThrottleTimeoutException if the window outlasts the maximum wait.
+   * @throws InterruptedException           if the calling thread is interrupted while sleeping.
+   */
+  private static void awaitResume(String cls, long start,
+                                  long maxWait) throws ESIRefThrottleTimeoutException, InterruptedException {
+    long delay;
+    while ((delay = getBackoffRemaining()) > 0) {
+      if (System.nanoTime() - start + TimeUnit.NANOSECONDS.convert(delay, TimeUnit.MILLISECONDS) > maxWait)
+        throw new ESIRefThrottleTimeoutException(cls, elapsed(start));
+      Thread.sleep(delay);
+    }
+  }
+
+  /**
+   * @return true if calls are currently paused because we are close to the error limit.
+   */
+  public static boolean isBackingOff() {
+    return getBackoffRemaining() > 0;
+  }
+
+  /**
+   * @return milliseconds until the current backoff window ends, or zero if no window is active.
+   */
+  public static long getBackoffRemaining() {
+    return Math.max(resumeAt.get() - System.currentTimeMillis(), 0);
+  }
+
+  /**
+   * Retrieve a future which completes when no backoff window is active.  The future is completed
+   * immediately if no window is active.  If the window is extended before it ends, then the future
+   * completes when the extended window ends.
+   *
+   * @return a future which completes when calls may resume.
+   */
+  public static CompletableFuture<Void> afterBackoff() {
+    CompletableFuture<Void> resume = new CompletableFuture<>();
+    completeAfterBackoff(resume);
+    return resume;
+  }
+
+  private static void completeAfterBackoff(CompletableFuture<Void> resume) {
+    long delay = getBackoffRemaining();
+    if (delay <= 0)
+      resume.complete(null);
+    else
+      scheduler.schedule(() -> completeAfterBackoff(resume), delay, TimeUnit.MILLISECONDS);
+  }
+
+  private static int extractHeader(Map<String, List<String>> headers, String name, int def) {
+    if (headers == null || !headers.containsKey(name)) return def;
     try {
-      String expireHeader = e.getResponseHeaders()
-                             .get("X-Esi-Error-Limit-Remain")
-                             .get(0);
-      return Integer.valueOf(expireHeader);
+      return Integer.valueOf(headers.get(name)
+                                    .get(0));
     } catch (Exception f) {
       log.log(Level.FINE, "Error parsing header, will return default: " + def, f);
     }
     return def;
   }
 
+  protected static int extractErrorLimitRemain(ApiException e, int def) {
+    return extractHeader(e.getResponseHeaders(), "X-Esi-Error-Limit-Remain", def);
+  }
+
   protected static int extractErrorLimitReset(ApiException e, int def) {
+    return extractHeader(e.getResponseHeaders(), "X-Esi-Error-Limit-Reset", def);
+  }
+
+  /**
+   * Record the error limit headers from any ESI response.  If the remaining error budget
+   * has changed enough, then the rate of every bucket is adjusted.
+   *
+   * @param headers response headers, may be null.
+   */
+  public static void observe(Map<String, List<String>> headers) {
+    int remain = extractHeader(headers, "X-Esi-Error-Limit-Remain", -1);
+    int reset = extractHeader(headers, "X-Esi-Error-Limit-Reset", -1);
+    if (remain < 0 || reset < 0) return;
+    ESIRefThrottleMetrics.errorLimitRemain(remain);
+    ESIRefErrorBudget.update(remain, reset, System.currentTimeMillis());
+    applyBudget();
+  }
+
+  private static double computeBudgetFactor() {
+    return ESIRefErrorBudget.factor(System.currentTimeMillis(), budgetSoftLimit, errorLimitRemain, budgetMinRate);
+  }
+
+  /**
+   * Scale all buckets to the current error budget.  While the budget is restricting calls, a check is
+   * scheduled for the end of the error window so that the full rate is restored when the window resets.
+   */
+  private static void applyBudget() {
+    // Most responses won't change the budget enough to matter, avoid locking in that case
+    if (Math.abs(computeBudgetFactor() - budgetFactor) < 0.01) return;
+    synchronized (throttleMap) {
+      double factor = computeBudgetFactor();
+      if (Math.abs(factor - budgetFactor) < 0.01) return;
+      budgetFactor = factor;
+      log.fine("ESI error budget now allows " + Math.round(factor * 100) + "% of normal rate");
+      for (String cls : throttleMap.keySet()) {
+        applyRate(cls);
+      }
+      if (factor < 1.0) {
+        long delay = Math.max(ESIRefErrorBudget.getResetAt() - System.currentTimeMillis(), 0);
+        scheduler.schedule(ESIRefThrottle::applyBudget, delay + 1, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Observe the rate limit for the next call of the current class and account at normal priority.
+   *
+   * @param cls class for next call
+   * @return milliseconds spent waiting for a permit.
+   * @throws ESIRefThrottleTimeoutException if a permit could not be obtained within the maximum wait.
+   * @throws InterruptedIOException         if the calling thread is interrupted while waiting.
+   * @see #throttle(String, Priority)
+   */
+  public static long throttle(String cls) throws IOException {
+    return throttle(cls, Priority.NORMAL);
+  }
+
+  /**
+   * Observe the rate limit for the next call of the current class and account.  The calling
+   * thread is parked until a permit is available.  If a permit will not be available within
+   * the maximum wait for this class, then the call fails without consuming a permit.  Any tokens
+   * already taken for the permit are returned.
+   *
+   * @param cls      class for next call
+   * @param priority priority of the call, may be overridden by configuration.
+   * @return milliseconds spent waiting for a permit.
+   * @throws ESIRefThrottleTimeoutException if a permit could not be obtained within the maximum wait.
+   * @throws InterruptedIOException         if the calling thread is interrupted while waiting.
+   */
+  public static long throttle(String cls, Priority priority) throws IOException {
+    long start = System.nanoTime();
+    KeyConfig config = config(cls);
+    long maxWait = config.maxWait;
     try {
-      String expireHeader = e.getResponseHeaders()
-                             .get("X-Esi-Error-Limit-Reset")
-                             .get(0);
-      return Integer.valueOf(expireHeader);
-    } catch (Exception f) {
-      log.log(Level.FINE, "Error parsing header, will return default: " + def, f);
+      // If an exception revealed that we're close to exhausting the error limit,
+      // then wait until the error limit has reset.
+      awaitResume(cls, start, maxWait);
+      long remaining = maxWait - (System.nanoTime() - start);
+      Bucket local = get(cls);
+      if (!local.tryConsume(1, Math.max(remaining, 0), BlockingStrategy.PARKING))
+        throw new ESIRefThrottleTimeoutException(cls, elapsed(start));
+      Bucket global = globalBucket;
+      try {
+        acquireGlobal(cls, global, Math.max(globalRate, 1),
+                      globalReserve(config.priority != null ? config.priority : priority, Math.max(globalRate, 1)),
+                      start, maxWait, maxStarve);
+      } catch (IOException | InterruptedException e) {
+        local.addTokens(1);
+        throw e;
+      }
+      Path shared = sharedThrottleDir;
+      if (shared != null) {
+        // Wait for a token from the bucket shared with other processes
+        try {
+          long wait;
+          while ((wait = ESIRefSharedThrottle.tryAcquire(shared, cls, getRate(cls))) > 0) {
+            if (System.nanoTime() - start + wait > maxWait)
+              throw new ESIRefThrottleTimeoutException(cls, elapsed(start));
+            LockSupport.parkNanos(wait);
+            if (Thread.interrupted()) throw new InterruptedException();
+          }
+        } catch (IOException | InterruptedException e) {
+          local.addTokens(1);
+          if (global != null) global.addTokens(1);
+          throw e;
+        }
+      }
+    } catch (ESIRefThrottleTimeoutException e) {
+      ESIRefThrottleMetrics.get(cls)
+                           .timedOut();
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+      throw new InterruptedIOException("Interrupted waiting for ESI throttle permit for " + cls);
     }
-    return def;
+    ESIRefThrottleMetrics.get(cls)
+                         .acquired(System.nanoTime() - start);
+    long waited = elapsed(start);
+    if (waited > 0) log.finer("Waited " + waited + " ms for throttle permit: " + cls);
+    return waited;
+  }
+
+  /**
+   * Retrieve the priority of calls for a key.
+   *
+   * @param cls the key
+   * @param def priority to use if no priority is configured for this key.
+   * @return the priority of calls for this key.
+   */
+  public static Priority getPriority(String cls, Priority def) {
+    Priority configured = config(cls).priority;
+    return configured != null ? configured : def;
+  }
+
+  private static Priority configuredPriority(String cls) {
+    String configured = PersistentProperty.getPropertyWithFallback(PROP_PRIORITY + "." + cls, "");
+    if (configured == null || configured.isEmpty()) return null;
+    try {
+      return Priority.valueOf(configured);
+    } catch (IllegalArgumentException e) {
+      log.warning("Ignoring unknown ESI priority for " + cls + ": " + configured);
+      return null;
+    }
+  }
+
+  /**
+   * Create or reconfigure the global bucket if the global rate has changed.
+   *
+   * @param rate the configured global rate.
+   */
+  private static void applyGlobalRate(int rate) {
+    if (rate == globalRate) return;
+    synchronized (ESIRefThrottle.class) {
+      if (rate != globalRate) {
+        if (rate <= 0)
+          globalBucket = null;
+        else if (globalBucket == null)
+          globalBucket = Bucket4j.builder()
+                                 .addLimit(bandwidth(rate))
+                                 .build();
+        else
+          globalBucket.replaceConfiguration(Bucket4j.configurationBuilder()
+                                                    .addLimit(bandwidth(rate))
+                                                    .buildConfiguration());
+        globalRate = rate;
+        log.info("Global ESI rate is now " + rate + " calls/second");
+      }
+    }
+  }
+
+  /**
+   * @return the number of global tokens which must remain after a call at the given priority takes a token.
+   */
+  static long globalReserve(Priority priority, int rate) {
+    // Leave at least one token a lower priority call can take, otherwise it could only take a token once starved
+    long reserve = Math.min((long) Math.ceil(rate * priorityReserve / 100.0), Math.max(rate - 1, 0));
+    switch (priority) {
+      case HIGH:
+        return 0;
+      case NORMAL:
+        return (reserve + 1) / 2;
+      default:
+        return reserve;
+    }
+  }
+
+  /**
+   * Try to take a global token without blocking, leaving at least the given number of tokens in the bucket.
+   * The token is taken first and returned if too few tokens remain, so that concurrent callers can not
+   * both take the last token above the reserve.
+   *
+   * @return zero if a token was taken, otherwise nanoseconds to wait before trying again.
+   */
+  static long tryGlobal(Bucket global, long reserve, int rate) {
+    ConsumptionProbe probe = global.tryConsumeAndReturnRemaining(1);
+    if (reserve == 0) return probe.isConsumed() ? 0 : Math.max(probe.getNanosToWaitForRefill(), 1);
+    if (probe.isConsumed()) {
+      if (probe.getRemainingTokens() >= reserve) return 0;
+      global.addTokens(1);
+    }
+    // Check again after roughly one token has been refilled
+    return TimeUnit.NANOSECONDS.convert(1, TimeUnit.SECONDS) / rate;
   }
 
   /**
-   * Observe the rate limit for the next call of the current class and account.
+   * Take a token from the global bucket, if there is one.  Calls which must leave a reserve poll the
+   * bucket until enough tokens are available, or until they have waited long enough to ignore the reserve.
+   * No token is taken if the call times out.
+   *
+   * @param cls       class of the call.
+   * @param global    the global bucket, or null if there is no global rate.
+   * @param rate      rate of the global bucket.
+   * @param reserve   number of tokens the call must leave in the bucket.
+   * @param start     time (from {@link System#nanoTime()}) at which the call started waiting.
+   * @param maxWait   maximum nanoseconds the call may wait.
+   * @param maxStarve nanoseconds after which the call ignores the reserve.
+   * @throws ESIRefThrottleTimeoutException if a token could not be obtained within the maximum wait.
+   * @throws InterruptedException           if the calling thread is interrupted while waiting.
+   */
+  static void acquireGlobal(String cls, Bucket global, int rate, long reserve, long start, long maxWait,
+                            long maxStarve) throws IOException, InterruptedException {
+    if (global == null) return;
+    while (true) {
+      long waited = System.nanoTime() - start;
+      if (reserve == 0 || waited >= maxStarve) {
+        if (!global.tryConsume(1, Math.max(maxWait - waited, 0), BlockingStrategy.PARKING))
+          throw new ESIRefThrottleTimeoutException(cls, elapsed(start));
+        return;
+      }
+      long wait = tryGlobal(global, reserve, rate);
+      if (wait == 0) return;
+      if (waited + wait > maxWait) throw new ESIRefThrottleTimeoutException(cls, elapsed(start));
+      LockSupport.parkNanos(wait);
+      if (Thread.interrupted()) throw new InterruptedException();
+    }
+  }
+
+  /**
+   * Request a permit for the next call of a class at normal priority without blocking.
    *
    * @param cls class for next call
+   * @return a future which completes with the milliseconds spent waiting for the permit.
+   * @see #acquireAsync(String, Priority)
+   */
+  public static CompletableFuture<Long> acquireAsync(String cls) {
+    return acquireAsync(cls, Priority.NORMAL);
+  }
+
+  /**
+   * Request a permit for the next call of a class without blocking.  The returned future is completed
+   * by the throttle scheduler once the permit has been granted and no backoff window is active.  The
+   * future completes exceptionally with {@link ESIRefThrottleTimeoutException} if a permit can not be
+   * granted within the maximum wait for this class, in which case any tokens already taken for it are
+   * returned.  Cancelling the future abandons the request, but any tokens already taken for it are not
+   * returned.
+   *
+   * @param cls      class for next call
+   * @param priority priority of the call, may be overridden by configuration.
+   * @return a future which completes with the milliseconds spent waiting for the permit.
+   */
+  public static CompletableFuture<Long> acquireAsync(String cls, Priority priority) {
+    AsyncPermit permit = new AsyncPermit(cls, priority);
+    permit.run();
+    return permit.future;
+  }
+
+  /**
+   * State of a permit requested asynchronously.  Each attempt takes as many of the required tokens as
+   * it can, then reschedules itself on the throttle scheduler for when the next token is expected.
    */
-  public static void throttle(String cls) {
-    // If an exception reveals that we're close to exhausting the error limit,
-    // then this synchronize call will block until the thread which hit the error
-    // limit has finished sleeping.
-    synchronized (ESIRefThrottle.class) {}
-    get(cls).tryConsume(1);
+  private static class AsyncPermit implements Runnable {
+    private final CompletableFuture<Long> future = new CompletableFuture<>();
+    private final String cls;
+    private final Priority priority;
+    private final long start = System.nanoTime();
+    private final long maxWait;
+    private boolean local;
+    private boolean global;
+    // Global bucket a token was taken from, or null if none was taken
+    private Bucket globalToken;
+
+    AsyncPermit(String cls, Priority priority) {
+      KeyConfig config = config(cls);
+      this.cls = cls;
+      this.priority = config.priority != null ? config.priority : priority;
+      maxWait = config.maxWait;
+    }
+
+    @Override
+    public void run() {
+      if (future.isDone()) return;
+      try {
+        long backoff = getBackoffRemaining();
+        long wait = backoff > 0 ? TimeUnit.NANOSECONDS.convert(backoff, TimeUnit.MILLISECONDS) : next();
+        if (wait == 0) {
+          ESIRefThrottleMetrics.get(cls)
+                               .acquired(System.nanoTime() - start);
+          future.complete(elapsed(start));
+        } else if (System.nanoTime() - start + wait > maxWait) {
+          refund();
+          ESIRefThrottleMetrics.get(cls)
+                               .timedOut();
+          future.completeExceptionally(new ESIRefThrottleTimeoutException(cls, elapsed(start)));
+        } else {
+          scheduler.schedule(this, wait, TimeUnit.NANOSECONDS);
+        }
+      } catch (IOException | RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    }
+
+    /**
+     * Return the tokens taken for a permit which timed out.
+     */
+    private void refund() {
+      if (local) get(cls).addTokens(1);
+      if (global && globalToken != null) globalToken.addTokens(1);
+    }
+
+    /**
+     * Take each token still required for this permit.
+     *
+     * @return zero if all tokens have been taken, otherwise nanoseconds to wait before trying again.
+     */
+    private long next() throws IOException {
+      if (!local) {
+        ConsumptionProbe probe = get(cls).tryConsumeAndReturnRemaining(1);
+        if (!probe.isConsumed()) return Math.max(probe.getNanosToWaitForRefill(), 1);
+        local = true;
+      }
+      if (!global) {
+        Bucket bucket = globalBucket;
+        if (bucket != null) {
+          int rate = Math.max(globalRate, 1);
+          long reserve = System.nanoTime() - start >= maxStarve ? 0 : globalReserve(priority, rate);
+          long wait = tryGlobal(bucket, reserve, rate);
+          if (wait > 0) return wait;
+          globalToken = bucket;
+        }
+        global = true;
+      }
+      Path shared = sharedThrottleDir;
+      return shared == null ? 0 : ESIRefSharedThrottle.tryAcquire(shared, cls, getRate(cls));
+    }
+  }
+
+  private static long elapsed(long start) {
+    return TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
   }
 
   /**
-   * Observe the rate limit if an exception includes a low remaining error limit.
+   * Observe the rate limit if an exception includes a low remaining error limit.  If the
+   * remaining error limit is low, then a backoff window is started (or extended) which lasts
+   * until the error limit resets.  This call does not block.
    *
    * @param e ApiException we recently caught
    */
   @SuppressWarnings("Duplicates")
   public static void throttle(ApiException e) {
+    observe(e.getResponseHeaders());
     int remain = extractErrorLimitRemain(e, Integer.MAX_VALUE);
-    if (remain < PersistentProperty.getIntegerPropertyWithFallback(PROP_DEFAULT_ERROR_LIMIT_REMAIN,
-                                                                   DEF_DEFAULT_ERROR_LIMIT_REMAIN)) {
-      // Too close to error limit, force current thread to sleep
+    if (remain < errorLimitRemain) {
+      // Too close to error limit, pause all callers until the limit resets
       long delay = extractErrorLimitReset(e, 5) * 1000 + 5000;
-      synchronized (ESIRefThrottle.class) {
-        log.fine("Near error rate threshold, throttling thread: " + Thread.currentThread()
-                                                                          .getName());
-        try {
-          Thread.sleep(delay);
-        } catch (InterruptedException f) {
-          // NOP
-        }
-      }
+      backoff(delay);
+    }
+  }
+
+  /**
+   * Start or extend the backoff window so that it lasts at least the given time.
+   *
+   * @param delay minimum milliseconds until calls may resume.
+   */
+  public static void backoff(long delay) {
+    long now = System.currentTimeMillis();
+    long until = now + delay;
+    long previous = resumeAt.getAndAccumulate(until, Math::max);
+    if (previous < until) {
+      ESIRefThrottleMetrics.paused(previous <= now, until - Math.max(previous, now));
+      log.fine("Near error rate threshold, pausing ESI calls for " + delay + " ms");
     }
   }
 }
@@ -0,0 +1,138 @@
+package enterprises.orbital.evekit.model;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records throttle activity for monitoring.  Each throttle key records the number of permits granted,
+ * the number of calls which timed out, the rate of permits per second over the last minute and a histogram
+ * of the time spent waiting for each permit.  All metrics are updated without locking, so recording does
+ * not contend with other callers of the throttle.  Backoff windows and the last reported remaining error limit are recorded
+ * for the JVM as a whole.  Metrics are kept for the life of the JVM and can be read with
+ * {@link ESIRefThrottle#snapshot()}.
+ */
+class ESIRefThrottleMetrics {
+
+  // Upper bounds (inclusive, in milliseconds) of the wait histogram buckets.  The last bucket holds all longer waits.
+  static final long[] WAIT_BOUNDS = {1, 10, 100, 1000, 10000};
+
+  // Number of one second slots over which the permit rate is measured
+  private static final int RATE_WINDOW = 60;
+
+  // Metrics by throttle key
+  private static final Map<String, ESIRefThrottleMetrics> metrics = new ConcurrentHashMap<>();
+
+  // Number of backoff windows started
+  private static final LongAdder pauses = new LongAdder();
+
+  // Total milliseconds added to backoff windows
+  private static final LongAdder pauseMillis = new LongAdder();
+
+  // Last remaining error limit reported by ESI, or -1 if none has been reported
+  private static volatile int lastErrorLimitRemain = -1;
+
+  private final LongAdder acquired = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+  private final LongAdder waitMillis = new LongAdder();
+  private final AtomicLongArray waitHistogram = new AtomicLongArray(WAIT_BOUNDS.length + 1);
+
+  // Permits granted in each of the last RATE_WINDOW seconds.  Each slot holds the second it counts in the
+  // upper 32 bits and the count in the lower 32 bits, so that a slot can be reused with a single update.
+  private final AtomicLongArray rateSlots = new AtomicLongArray(RATE_WINDOW);
+
+  private ESIRefThrottleMetrics() {}
+
+  static ESIRefThrottleMetrics get(String cls) {
+    return metrics.computeIfAbsent(cls, k -> new ESIRefThrottleMetrics());
+  }
+
+  /**
+   * Record a permit granted after waiting.
+   *
+   * @param waitNanos nanoseconds spent waiting for the permit.
+   */
+  void acquired(long waitNanos) {
+    long wait = TimeUnit.MILLISECONDS.convert(waitNanos, TimeUnit.NANOSECONDS);
+    acquired.increment();
+    waitMillis.add(wait);
+    int bucket = 0;
+    while (bucket < WAIT_BOUNDS.length && wait > WAIT_BOUNDS[bucket]) bucket++;
+    waitHistogram.incrementAndGet(bucket);
+    long second = currentSecond();
+    int slot = (int) (second % RATE_WINDOW);
+    rateSlots.updateAndGet(slot, v -> (v >>> 32) == second ? v + 1 : (second << 32) | 1);
+  }
+
+  void timedOut() {
+    timeouts.increment();
+  }
+
+  private static long currentSecond() {
+    return TimeUnit.SECONDS.convert(System.nanoTime(), TimeUnit.NANOSECONDS) & 0xFFFFFFFFL;
+  }
+
+  long getAcquired() {
+    return acquired.sum();
+  }
+
+  long getTimeouts() {
+    return timeouts.sum();
+  }
+
+  long getWaitMillis() {
+    return waitMillis.sum();
+  }
+
+  long[] getWaitHistogram() {
+    long[] result = new long[waitHistogram.length()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = waitHistogram.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * @return permits granted per second over the last minute.
+   */
+  double getRate() {
+    long now = currentSecond();
+    long total = 0;
+    for (int i = 0; i < RATE_WINDOW; i++) {
+      long v = rateSlots.get(i);
+      // Skip slots last used more than a minute ago
+      if (((now - (v >>> 32)) & 0xFFFFFFFFL) < RATE_WINDOW) total += v & 0xFFFFFFFFL;
+    }
+    return (double) total / RATE_WINDOW;
+  }
+
+  /**
+   * Record the start or extension of a backoff window.
+   *
+   * @param started true if no window was active before.
+   * @param added   milliseconds added to the window.
+   */
+  static void paused(boolean started, long added) {
+    if (started) pauses.increment();
+    pauseMillis.add(Math.max(added, 0));
+  }
+
+  static long getPauses() {
+    return pauses.sum();
+  }
+
+  static long getPauseMillis() {
+    return pauseMillis.sum();
+  }
+
+  static void errorLimitRemain(int remain) {
+    lastErrorLimitRemain = remain;
+  }
+
+  static int getLastErrorLimitRemain() {
+    return lastErrorLimitRemain;
+  }
+
+}
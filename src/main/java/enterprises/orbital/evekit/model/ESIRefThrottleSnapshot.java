@@ -0,0 +1,170 @@
+package enterprises.orbital.evekit.model;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Point in time view of throttle state and activity, suitable for export to monitoring.
+ * Counters are cumulative for the life of the JVM.
+ */
+public class ESIRefThrottleSnapshot {
+
+  /**
+   * Throttle state and activity for a single key.
+   */
+  public static class KeyStats {
+    private final String key;
+    private final double rate;
+    private final long availableTokens;
+    private final long acquired;
+    private final double acquiredPerSecond;
+    private final long timeouts;
+    private final long waitMillis;
+    private final long[] waitHistogram;
+
+    KeyStats(String key, double rate, long availableTokens, long acquired, double acquiredPerSecond, long timeouts,
+             long waitMillis, long[] waitHistogram) {
+      this.key = key;
+      this.rate = rate;
+      this.availableTokens = availableTokens;
+      this.acquired = acquired;
+      this.acquiredPerSecond = acquiredPerSecond;
+      this.timeouts = timeouts;
+      this.waitMillis = waitMillis;
+      this.waitHistogram = waitHistogram;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * @return rate currently applied to this key in calls per second.
+     */
+    public double getRate() {
+      return rate;
+    }
+
+    public long getAvailableTokens() {
+      return availableTokens;
+    }
+
+    /**
+     * @return total permits granted.
+     */
+    public long getAcquired() {
+      return acquired;
+    }
+
+    /**
+     * @return permits granted per second over the last minute.
+     */
+    public double getAcquiredPerSecond() {
+      return acquiredPerSecond;
+    }
+
+    /**
+     * @return total calls which timed out waiting for a permit.
+     */
+    public long getTimeouts() {
+      return timeouts;
+    }
+
+    /**
+     * @return total milliseconds spent waiting for permits.
+     */
+    public long getWaitMillis() {
+      return waitMillis;
+    }
+
+    /**
+     * Count of permits by time spent waiting.  Element i counts waits no longer than
+     * {@link #getWaitHistogramBounds()}[i] milliseconds (and longer than the previous bound).
+     * The last element counts waits longer than the last bound.
+     *
+     * @return wait time histogram.
+     */
+    public long[] getWaitHistogram() {
+      return waitHistogram.clone();
+    }
+  }
+
+  private final long time;
+  private final boolean backingOff;
+  private final long backoffRemaining;
+  private final long pauses;
+  private final long pauseMillis;
+  private final int lastErrorLimitRemain;
+  private final double errorBudgetFactor;
+  private final Map<String, KeyStats> keys;
+
+  ESIRefThrottleSnapshot(long time, boolean backingOff, long backoffRemaining, long pauses, long pauseMillis,
+                         int lastErrorLimitRemain, double errorBudgetFactor, Map<String, KeyStats> keys) {
+    this.time = time;
+    this.backingOff = backingOff;
+    this.backoffRemaining = backoffRemaining;
+    this.pauses = pauses;
+    this.pauseMillis = pauseMillis;
+    this.lastErrorLimitRemain = lastErrorLimitRemain;
+    this.errorBudgetFactor = errorBudgetFactor;
+    this.keys = Collections.unmodifiableMap(keys);
+  }
+
+  /**
+   * @return upper bounds in milliseconds of the wait histogram buckets.
+   */
+  public static long[] getWaitHistogramBounds() {
+    return ESIRefThrottleMetrics.WAIT_BOUNDS.clone();
+  }
+
+  /**
+   * @return time (in milliseconds since the epoch) when this snapshot was taken.
+   */
+  public long getTime() {
+    return time;
+  }
+
+  public boolean isBackingOff() {
+    return backingOff;
+  }
+
+  public long getBackoffRemaining() {
+    return backoffRemaining;
+  }
+
+  /**
+   * @return number of error limit backoff windows started.
+   */
+  public long getPauses() {
+    return pauses;
+  }
+
+  /**
+   * @return total milliseconds of error limit backoff.
+   */
+  public long getPauseMillis() {
+    return pauseMillis;
+  }
+
+  /**
+   * @return last remaining error limit reported by ESI, or -1 if none has been reported.
+   */
+  public int getLastErrorLimitRemain() {
+    return lastErrorLimitRemain;
+  }
+
+  /**
+   * @return fraction of normal rates currently allowed by the error budget.
+   */
+  public double getErrorBudgetFactor() {
+    return errorBudgetFactor;
+  }
+
+  /**
+   * @return statistics for each throttle key.
+   */
+  public Map<String, KeyStats> getKeys() {
+    return keys;
+  }
+
+}
@@ -0,0 +1,30 @@
+package enterprises.orbital.evekit.model;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a call can not obtain a permit from {@link ESIRefThrottle} within the maximum
+ * wait configured for its throttle class.
+ */
+public class ESIRefThrottleTimeoutException extends IOException {
+  private final String throttleClass;
+  private final long waited;
+
+  public ESIRefThrottleTimeoutException(String throttleClass, long waited) {
+    super("Timed out waiting for ESI throttle permit for " + throttleClass + " after " + waited + " ms");
+    this.throttleClass = throttleClass;
+    this.waited = waited;
+  }
+
+  public String getThrottleClass() {
+    return throttleClass;
+  }
+
+  /**
+   * @return milliseconds waited before giving up.
+   */
+  public long getWaited() {
+    return waited;
+  }
+
+}
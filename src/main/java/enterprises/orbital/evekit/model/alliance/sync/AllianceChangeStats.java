@@ -0,0 +1,88 @@
+package enterprises.orbital.evekit.model.alliance.sync;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks how often each alliance changes.  Each time an alliance is refreshed, the change score moves towards one
+ * if any of its data was stored since the previous refresh, and towards zero otherwise.  The score is an
+ * exponentially weighted average so that recent refreshes count the most.  Stats are kept in memory for the life
+ * of the JVM, and alliances without stats are treated as unknown.
+ */
+class AllianceChangeStats {
+
+  // Weight of the latest refresh in the change score
+  private static final double ALPHA = 0.3;
+
+  // Stats by alliance ID
+  private static final Map<Integer, AllianceChangeStats> stats = new ConcurrentHashMap<>();
+
+  // Weighted fraction of refreshes which found changes, starting from neutral
+  private double score = 0.5;
+
+  // Time (milliseconds since the epoch) of the last refresh
+  private long lastRefresh;
+
+  // True if data was stored since the last refresh
+  private boolean changed;
+
+  private AllianceChangeStats() {}
+
+  /**
+   * Record that data was stored for an alliance.  The change is counted at the next refresh.
+   *
+   * @param allianceID the alliance which changed.
+   */
+  static void changed(int allianceID) {
+    AllianceChangeStats next = stats.computeIfAbsent(allianceID, k -> new AllianceChangeStats());
+    synchronized (next) {
+      next.changed = true;
+    }
+  }
+
+  /**
+   * Record that an alliance was refreshed and all changes have been stored.
+   *
+   * @param allianceID the alliance which was refreshed.
+   * @param time       time of the refresh in milliseconds since the epoch.
+   */
+  static void refreshed(int allianceID, long time) {
+    AllianceChangeStats next = stats.computeIfAbsent(allianceID, k -> new AllianceChangeStats());
+    synchronized (next) {
+      next.score = next.score * (1 - ALPHA) + (next.changed ? ALPHA : 0);
+      next.changed = false;
+      next.lastRefresh = time;
+    }
+  }
+
+  /**
+   * Determine how overdue an alliance is for refresh.  The target refresh interval is the base interval scaled by
+   * a factor between 1 / spread for alliances which always change and spread for alliances which never change.
+   * An alliance with a neutral score has the base interval.
+   *
+   * @param allianceID the alliance to check.
+   * @param now        current time in milliseconds since the epoch.
+   * @param base       target refresh interval in milliseconds for an alliance with a neutral score.
+   * @param spread     maximum factor by which the target interval is shortened or lengthened.
+   * @return time since the last refresh as a multiple of the target interval, or positive infinity if the
+   * alliance has never been refreshed.
+   */
+  static double urgency(int allianceID, long now, long base, double spread) {
+    AllianceChangeStats next = stats.get(allianceID);
+    if (next == null) return Double.POSITIVE_INFINITY;
+    synchronized (next) {
+      if (next.lastRefresh == 0) return Double.POSITIVE_INFINITY;
+      double interval = Math.max(base * Math.pow(Math.max(spread, 1), 1 - 2 * next.score), 1);
+      return (now - next.lastRefresh) / interval;
+    }
+  }
+
+  static void remove(int allianceID) {
+    stats.remove(allianceID);
+  }
+
+  static void clear() {
+    stats.clear();
+  }
+
+}
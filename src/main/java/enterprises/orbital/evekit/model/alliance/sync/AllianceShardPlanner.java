@@ -0,0 +1,169 @@
+package enterprises.orbital.evekit.model.alliance.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Plans which alliances are refreshed by each alliance synchronization.  The alliance list is sorted by alliance ID
+ * and walked in order, a fixed sized shard at a time, so that every alliance is refreshed once per rotation.
+ * The position of the next shard is stored in tracker context as the alliance ID at which it starts.  Since the
+ * position is an alliance ID rather than a shard number, alliances which appear or disappear between runs do not
+ * cause other alliances to be skipped or refreshed twice in the same rotation.
+ * <p>
+ * The number of shards is chosen so that a full rotation completes within a target time at the normal run
+ * interval.  Shards are never smaller than a minimum size, so that small lists are refreshed in one run.  If a
+ * shard would need more alliances than the per-run limit allows, the shard is capped and runs are scheduled more
+ * often instead so that the rotation target is still met.
+ * <p>
+ * If an urgency function is given, each run instead refreshes the most urgent alliances, up to the same shard size.
+ * Alliances with infinite urgency, such as alliances which have never been refreshed, come first and are taken in
+ * rotation order.  The stored position then only advances past such alliances.
+ */
+class AllianceShardPlanner {
+
+  /**
+   * Alliances to refresh in the current run, and when and where the next run should start.
+   */
+  static class Plan {
+    private final List<Integer> shard;
+    private final int shardCount;
+    private final long interval;
+    private final String nextContext;
+
+    Plan(List<Integer> shard, int shardCount, long interval, String nextContext) {
+      this.shard = shard;
+      this.shardCount = shardCount;
+      this.interval = interval;
+      this.nextContext = nextContext;
+    }
+
+    /**
+     * @return alliances to refresh in this run, in the order they should be refreshed.
+     */
+    List<Integer> getShard() {
+      return shard;
+    }
+
+    /**
+     * @return number of runs needed to refresh every alliance.
+     */
+    int getShardCount() {
+      return shardCount;
+    }
+
+    /**
+     * @return milliseconds until the next run.
+     */
+    long getInterval() {
+      return interval;
+    }
+
+    /**
+     * @return tracker context for the next run.
+     */
+    String getNextContext() {
+      return nextContext;
+    }
+  }
+
+  private AllianceShardPlanner() {}
+
+  /**
+   * Plan the next shard in rotation order.
+   *
+   * @param alliances   current alliance list.
+   * @param context     tracker context stored by the previous run, or null.
+   * @param rotation    target milliseconds to refresh every alliance.
+   * @param runInterval normal milliseconds between runs.
+   * @param maxPerRun   maximum alliances to refresh in one run.
+   * @param minShard    minimum alliances to refresh in one run.
+   * @return the plan for this run.
+   */
+  static Plan plan(List<Integer> alliances, String context, long rotation, long runInterval, int maxPerRun,
+                   int minShard) {
+    return plan(alliances, context, rotation, runInterval, maxPerRun, minShard, null);
+  }
+
+  /**
+   * Plan the next shard.
+   *
+   * @param alliances   current alliance list.
+   * @param context     tracker context stored by the previous run, or null.
+   * @param rotation    target milliseconds to refresh every alliance.
+   * @param runInterval normal milliseconds between runs.
+   * @param maxPerRun   maximum alliances to refresh in one run.
+   * @param minShard    minimum alliances to refresh in one run.
+   * @param urgency     urgency of refreshing each alliance, or null to refresh alliances in rotation order.
+   * @return the plan for this run.
+   */
+  static Plan plan(List<Integer> alliances, String context, long rotation, long runInterval, int maxPerRun,
+                   int minShard, ToDoubleFunction<Integer> urgency) {
+    List<Integer> sorted = new ArrayList<>(alliances);
+    Collections.sort(sorted);
+    int count = sorted.size();
+    runInterval = Math.max(runInterval, 1);
+    maxPerRun = Math.max(maxPerRun, 1);
+    if (count == 0) return new Plan(Collections.emptyList(), 1, runInterval, context);
+
+    // Size shards so that a rotation completes in time at the normal run interval
+    int runs = (int) Math.max(rotation / runInterval, 1);
+    int size = Math.max((count + runs - 1) / runs, Math.min(minShard, count));
+    long interval = runInterval;
+    if (size > maxPerRun) {
+      // Too many alliances for one run, so run more often instead
+      size = maxPerRun;
+      runs = (count + size - 1) / size;
+      interval = Math.max(rotation / runs, 1);
+    }
+    size = Math.min(size, count);
+    int shardCount = (count + size - 1) / size;
+
+    // Order alliances starting from the first alliance at or after the stored position, wrapping to the start
+    // of the list
+    int start = Collections.binarySearch(sorted, parsePosition(context));
+    if (start < 0) start = -start - 1;
+    if (start >= count) start = 0;
+    List<Integer> ordered = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      ordered.add(sorted.get((start + i) % count));
+    }
+    if (urgency == null)
+      return new Plan(new ArrayList<>(ordered.subList(0, size)), shardCount, interval,
+                      String.valueOf(ordered.get(size % count)));
+
+    // Take the most urgent alliances.  The sort is stable, so ties stay in rotation order.
+    Map<Integer, Integer> rank = new HashMap<>();
+    Map<Integer, Double> scores = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      rank.put(ordered.get(i), i);
+      scores.put(ordered.get(i), urgency.applyAsDouble(ordered.get(i)));
+    }
+    List<Integer> byUrgency = new ArrayList<>(ordered);
+    byUrgency.sort(Comparator.comparingDouble((Integer x) -> scores.get(x))
+                             .reversed());
+    List<Integer> shard = new ArrayList<>(byUrgency.subList(0, size));
+
+    // Advance the position past the last alliance taken in rotation order
+    int last = -1;
+    for (int next : shard) {
+      if (scores.get(next) == Double.POSITIVE_INFINITY) last = Math.max(last, rank.get(next));
+    }
+    String nextContext = last < 0 ? context : String.valueOf(ordered.get((last + 1) % count));
+    return new Plan(shard, shardCount, interval, nextContext);
+  }
+
+  private static int parsePosition(String context) {
+    try {
+      return Math.max(Integer.valueOf(context), 0);
+    } catch (Exception e) {
+      // No position yet, start from the beginning
+      return 0;
+    }
+  }
+
+}
@@ -1,6 +1,7 @@
 package enterprises.orbital.evekit.model.alliance.sync;
 
 import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.base.PersistentProperty;
 import enterprises.orbital.eve.esi.client.api.AllianceApi;
 import enterprises.orbital.eve.esi.client.invoker.ApiException;
 import enterprises.orbital.eve.esi.client.invoker.ApiResponse;
@@ -10,24 +11,113 @@ import enterprises.orbital.evekit.model.*;
 import enterprises.orbital.evekit.model.alliance.Alliance;
 import enterprises.orbital.evekit.model.alliance.AllianceIcon;
 import enterprises.orbital.evekit.model.alliance.AllianceMemberCorporation;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
 import org.joda.time.DateTime;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 public class ESIAllianceSync extends AbstractESIRefSync<ESIAllianceSync.AllianceServerData> {
   protected static final Logger log = Logger.getLogger(ESIAllianceSync.class.getName());
+
+  // Maximum number of alliance detail calls in flight at once.  May be set per endpoint by appending
+  // "." + endpoint name.
+  private static final String PROP_MAX_IN_FLIGHT = "enterprises.orbital.evekit.ref_sync_mgr.alliance_max_in_flight";
+  private static final int DEF_MAX_IN_FLIGHT = 100;
+
+  // If true, alliance detail calls send the ETag of the last stored response so that ESI can respond with
+  // 304 (not modified).  May be set per endpoint by appending "." + endpoint name.
+  private static final String PROP_CONDITIONAL_REQUESTS = "enterprises.orbital.evekit.ref_sync_mgr.alliance_conditional";
+  private static final boolean DEF_CONDITIONAL_REQUESTS = true;
+
+  // Maximum age (milliseconds) of a cached response before the data is retrieved and processed in full again
+  private static final String PROP_ETAG_MAX_AGE = "enterprises.orbital.evekit.ref_sync_mgr.alliance_etag_max_age";
+  private static final long DEF_ETAG_MAX_AGE = TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS);
+
+  // Target time (milliseconds) to refresh every alliance
+  private static final String PROP_ROTATION_TIME = "enterprises.orbital.evekit.ref_sync_mgr.alliance_rotation_time";
+  private static final long DEF_ROTATION_TIME = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
+  // Normal time (milliseconds) between alliance synchronizations
+  private static final String PROP_RUN_INTERVAL = "enterprises.orbital.evekit.ref_sync_mgr.alliance_run_interval";
+  private static final long DEF_RUN_INTERVAL = TimeUnit.MILLISECONDS.convert(6, TimeUnit.MINUTES);
+
+  // Maximum alliance detail calls in one synchronization.  May be set per endpoint by appending "." + endpoint name.
+  private static final String PROP_CALL_BUDGET = "enterprises.orbital.evekit.ref_sync_mgr.alliance_call_budget";
+  private static final int DEF_CALL_BUDGET = 3000;
+
+  // Minimum alliances refreshed in one synchronization.  May be set per endpoint by appending "." + endpoint name.
+  private static final String PROP_MIN_SHARD = "enterprises.orbital.evekit.ref_sync_mgr.alliance_min_shard";
+  private static final int DEF_MIN_SHARD = 100;
+
+  // If true, alliances which change often are refreshed more often than alliances which rarely change, within the
+  // same per-run limit.  May be set per endpoint by appending "." + endpoint name.
+  private static final String PROP_PRIORITIZE = "enterprises.orbital.evekit.ref_sync_mgr.alliance_prioritize";
+  private static final boolean DEF_PRIORITIZE = true;
+
+  // Maximum factor by which the refresh interval of an alliance is shortened or lengthened according to how often
+  // it changes.  May be set per endpoint by appending "." + endpoint name.
+  private static final String PROP_PRIORITY_SPREAD = "enterprises.orbital.evekit.ref_sync_mgr.alliance_priority_spread";
+  private static final int DEF_PRIORITY_SPREAD = 4;
+
+  // Number of detail calls made for each alliance
+  private static final int ROUTE_COUNT = 3;
+
+  // Last stored response for each alliance detail call, by alliance ID
+  private static final Map<Integer, CachedResponse<GetAlliancesAllianceIdOk>> allianceCache =
+      new ConcurrentHashMap<>();
+  private static final Map<Integer, CachedResponse<GetAlliancesAllianceIdIconsOk>> iconCache =
+      new ConcurrentHashMap<>();
+  private static final Map<Integer, CachedResponse<List<Integer>>> corpListCache = new ConcurrentHashMap<>();
+
   private String context;
 
+  // A response to an alliance detail call together with the ETag ESI returned with it
+  static class CachedResponse<A> {
+    final String etag;
+    final A data;
+    // Time when the response was first received
+    final long received;
+
+    CachedResponse(String etag, A data, long received) {
+      this.etag = etag;
+      this.data = data;
+      this.received = received;
+    }
+  }
+
   class AllianceServerData {
+    // All current alliances
+    Set<Integer> allAlliances = new HashSet<>();
+    // Alliances refreshed in this synchronization
     List<Integer> allianceList = new ArrayList<>();
-    Map<Integer, GetAlliancesAllianceIdOk> allianceMap = new HashMap<>();
-    Map<Integer, GetAlliancesAllianceIdIconsOk> iconMap = new HashMap<>();
-    Map<Integer, List<Integer>> corpListMap = new HashMap<>();
+    Map<Integer, GetAlliancesAllianceIdOk> allianceMap = new ConcurrentHashMap<>();
+    Map<Integer, GetAlliancesAllianceIdIconsOk> iconMap = new ConcurrentHashMap<>();
+    Map<Integer, List<Integer>> corpListMap = new ConcurrentHashMap<>();
+    // Responses which may be cached once updates have been stored
+    Map<Integer, CachedResponse<GetAlliancesAllianceIdOk>> allianceResponses = new ConcurrentHashMap<>();
+    Map<Integer, CachedResponse<GetAlliancesAllianceIdIconsOk>> iconResponses = new ConcurrentHashMap<>();
+    Map<Integer, CachedResponse<List<Integer>>> corpListResponses = new ConcurrentHashMap<>();
+    // Number of detail calls for each alliance which were not modified since the cached response
+    Map<Integer, Integer> notModified = new ConcurrentHashMap<>();
+    // Alliances removed during processing
+    Set<Integer> removed = new HashSet<>();
+    // Alliances with data to store, recorded in change stats once the data has been stored
+    Set<Integer> changed = new HashSet<>();
+
+    // An alliance is unchanged, and need not be processed, if none of its detail calls were modified
+    boolean isUnchanged(int allianceID) {
+      return notModified.getOrDefault(allianceID, 0) == ROUTE_COUNT;
+    }
+  }
+
+  // Alliance detail call which may be made conditional on the ETag of an earlier response
+  private interface ConditionalCall<A> {
+    ApiResponse<A> call(String ifNoneMatch) throws ApiException;
   }
 
   @Override
@@ -35,11 +125,23 @@ public class ESIAllianceSync extends AbstractESIRefSync<ESIAllianceSync.Alliance
     return ESIRefSyncEndpoint.REF_ALLIANCE;
   }
 
+  @Override
+  protected ESIRefThrottle.Priority throttlePriority() {
+    // Bulk fetch of many alliances, should not starve other endpoints
+    return ESIRefThrottle.Priority.LOW;
+  }
+
   @Override
   protected String getNextSyncContext() {
     return context;
   }
 
+  @Override
+  protected String computeFingerprint(AllianceServerData data) {
+    // Tracker context holds the shard position, and each sync covers a different subset of alliances
+    return null;
+  }
+
   @Override
   protected void commit(long time,
                         RefCachedData item) throws IOException {
@@ -48,46 +150,147 @@ public class ESIAllianceSync extends AbstractESIRefSync<ESIAllianceSync.Alliance
     if (item.getLifeStart() == 0) {
       // Only need to check for existing item if current item is an update
       if (item instanceof Alliance) {
-        existing = Alliance.get(time, ((Alliance) item).getAllianceID());
+        long allianceID = ((Alliance) item).getAllianceID();
+        existing = findLive(Alliance.class, allianceID, () -> Alliance.get(time, allianceID));
       } else if (item instanceof AllianceIcon) {
-        existing = AllianceIcon.get(time, ((AllianceIcon) item).getAllianceID());
+        long allianceID = ((AllianceIcon) item).getAllianceID();
+        existing = findLive(AllianceIcon.class, allianceID, () -> AllianceIcon.get(time, allianceID));
       } else {
         AllianceMemberCorporation api = (AllianceMemberCorporation) item;
-        existing = AllianceMemberCorporation.get(time, api.getAllianceID(), api.getCorporationID());
+        existing = findLive(AllianceMemberCorporation.class, Pair.of(api.getAllianceID(), api.getCorporationID()),
+                            () -> AllianceMemberCorporation.get(time, api.getAllianceID(),
+                                                                api.getCorporationID()));
       }
     }
     evolveOrAdd(time, existing, item);
   }
 
+  private static long allianceID(RefCachedData item) {
+    if (item instanceof Alliance) return ((Alliance) item).getAllianceID();
+    if (item instanceof AllianceIcon) return ((AllianceIcon) item).getAllianceID();
+    return ((AllianceMemberCorporation) item).getAllianceID();
+  }
+
+  @Override
+  protected Object partitionKey(RefCachedData item) {
+    // All data for an alliance is committed together
+    return allianceID(item);
+  }
+
   /**
-   * Runner class for making threaded requests to the ESI.  The alliance endpoints require separate
-   * individual calls for many data items.  Therefore, threading is required to avoid long synchronization times.
-   *
-   * @param <A> return type from the ESI call.
+   * Alliance detail calls for a single synchronization.  Calls are started asynchronously, keeping no more than
+   * a fixed number in flight.  The first failure completes a shared future with the cause of the failure.  Calls
+   * still waiting for a throttle permit at that point are abandoned rather than sent to ESI.
    */
-  class ESICaller<A> implements Runnable {
+  private class AllianceFetcher {
+    private final AllianceServerData data;
+    private final Executor executor;
+    private final Semaphore inFlight;
+    private final boolean conditional;
+    private final long maxAge;
+    private final CompletableFuture<Void> failed = new CompletableFuture<>();
+    private final List<CompletableFuture<?>> calls = new ArrayList<>();
+
+    AllianceFetcher(AllianceServerData data, Executor executor) {
+      this.data = data;
+      this.executor = executor;
+      inFlight = new Semaphore(Math.max(getEndpointProperty(PROP_MAX_IN_FLIGHT, DEF_MAX_IN_FLIGHT), 1));
+      conditional = getEndpointProperty(PROP_CONDITIONAL_REQUESTS, DEF_CONDITIONAL_REQUESTS);
+      maxAge = PersistentProperty.getLongPropertyWithFallback(PROP_ETAG_MAX_AGE, DEF_ETAG_MAX_AGE);
+    }
 
-    Map<Integer, Object> resultMap;
-    int key;
-    Callable<A> invoke;
+    boolean isFailed() {
+      return failed.isDone();
+    }
 
-    ESICaller(Map<Integer, Object> resultMap, int key, Callable<A> invoke) {
-      this.resultMap = resultMap;
-      this.key = key;
-      this.invoke = invoke;
+    /**
+     * Start a call once fewer than the maximum number of calls are in flight.  The calling thread blocks until
+     * a slot is available.  If a recent cached response exists, the call is made conditional on its ETag.
+     * The response data, or the cached data if ESI reports it is not modified, is added to the result map.
+     *
+     * @param allianceID alliance to retrieve.
+     * @param call       the ESI call.
+     * @param cache      cached responses for this call.
+     * @param result     receives the response data.
+     * @param responses  receives responses which may be cached once updates have been stored.
+     * @param <A>        type of data returned by the call.
+     * @throws InterruptedException if interrupted while waiting for a slot.
+     */
+    <A> void fetch(int allianceID, ConditionalCall<A> call, Map<Integer, CachedResponse<A>> cache,
+                   Map<Integer, A> result, Map<Integer, CachedResponse<A>> responses) throws InterruptedException {
+      long now = OrbitalProperties.getCurrentTime();
+      CachedResponse<A> cached = conditional ? cache.get(allianceID) : null;
+      if (cached != null && now - cached.received > maxAge) cached = null;
+      String ifNoneMatch = cached == null ? null : cached.etag;
+      CachedResponse<A> previous = cached;
+      inFlight.acquire();
+      CompletableFuture<Void> next;
+      try {
+        next = callESIAsync(() -> {
+          if (failed.isDone()) throw new CancellationException();
+          return call.call(ifNoneMatch);
+        }, executor).handle((response, e) -> {
+          if (e != null) {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (previous == null || !(cause instanceof ApiException) ||
+                ((ApiException) cause).getCode() != HttpStatus.SC_NOT_MODIFIED)
+              throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+            // Unchanged since the cached response
+            result.put(allianceID, previous.data);
+            responses.put(allianceID, previous);
+            data.notModified.merge(allianceID, 1, Integer::sum);
+            return null;
+          }
+          try {
+            checkCommonProblems(response);
+          } catch (IOException f) {
+            throw new CompletionException(f);
+          }
+          result.put(allianceID, response.getData());
+          String etag = extractETag(response.getHeaders());
+          if (etag != null) responses.put(allianceID, new CachedResponse<>(etag, response.getData(), now));
+          return null;
+        });
+      } catch (RuntimeException e) {
+        inFlight.release();
+        throw e;
+      }
+      calls.add(next.whenComplete((v, e) -> {
+        inFlight.release();
+        if (e != null) failed.completeExceptionally(e);
+      }));
     }
 
-    public void run() {
+    /**
+     * Wait until all calls have completed, or until the first call fails.
+     *
+     * @throws ApiException if a call failed with an ESI client error.
+     * @throws IOException  on any other failure.
+     */
+    void await() throws ApiException, IOException {
       try {
-        resultMap.put(key, invoke.call());
-      } catch (Throwable e) {
-        resultMap.put(key, e);
+        // Each call completes its own future, so we only wait as long as the slowest call, or until the first
+        // failure
+        CompletableFuture.anyOf(CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])), failed)
+                         .get();
+      } catch (InterruptedException e) {
+        Thread.currentThread()
+              .interrupt();
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause() instanceof CompletionException ? e.getCause()
+                                                                          .getCause() : e.getCause();
+        if (cause instanceof ApiException) throw (ApiException) cause;
+        if (cause instanceof IOException) throw (IOException) cause;
+        throw new IOException(cause);
       }
     }
 
+    int size() {
+      return calls.size();
+    }
   }
 
-  @SuppressWarnings("unchecked")
   @Override
   protected ESIRefServerResult<AllianceServerData> getServerData(
       ESIRefClientProvider cp) throws ApiException, IOException {
@@ -95,170 +298,167 @@ public class ESIAllianceSync extends AbstractESIRefSync<ESIAllianceSync.Alliance
     AllianceApi apiInstance = cp.getAllianceApi();
     // Retrieve alliance list
     log.fine(getContext() + " retrieving alliance list");
-    ESIRefThrottle.throttle(endpoint().name());
-    ApiResponse<List<Integer>> resultAllianceList = apiInstance.getAlliancesWithHttpInfo(null, null);
+    ApiResponse<List<Integer>> resultAllianceList = callESI(() -> apiInstance.getAlliancesWithHttpInfo(null, null));
     checkCommonProblems(resultAllianceList);
-    // Hard code expiry to six minutes in the future so that we properly cycle through all the alliances
-    long expiry = OrbitalProperties.getCurrentTime() + TimeUnit.MILLISECONDS.convert(6, TimeUnit.MINUTES);
 
-    // If a context is present, use it to filter out which alliances we'll process.
-    // We batch alliance sync since the set of alliances is so large.
-    int allianceFilter;
+    // Select the next shard of alliances to refresh.  The tracker context holds the position of the shard.
+    String position;
     try {
-      allianceFilter = Integer.valueOf(getCurrentTracker().getContext());
-      allianceFilter = Math.max(allianceFilter, 0);
+      position = getCurrentTracker().getContext();
     } catch (Exception e) {
-      // No filter exists, assign a random filter
-      allianceFilter = (int) ((OrbitalProperties.getCurrentTime() / 1000) % 10);
+      // No position exists, start from the beginning
+      position = null;
     }
+    long rotation = PersistentProperty.getLongPropertyWithFallback(PROP_ROTATION_TIME, DEF_ROTATION_TIME);
+    long now = OrbitalProperties.getCurrentTime();
+    int spread = getEndpointProperty(PROP_PRIORITY_SPREAD, DEF_PRIORITY_SPREAD);
+    AllianceShardPlanner.Plan plan = AllianceShardPlanner.plan(
+        resultAllianceList.getData(), position, rotation,
+        PersistentProperty.getLongPropertyWithFallback(PROP_RUN_INTERVAL, DEF_RUN_INTERVAL),
+        getEndpointProperty(PROP_CALL_BUDGET, DEF_CALL_BUDGET) / ROUTE_COUNT,
+        getEndpointProperty(PROP_MIN_SHARD, DEF_MIN_SHARD),
+        getEndpointProperty(PROP_PRIORITIZE, DEF_PRIORITIZE) ?
+            allianceID -> AllianceChangeStats.urgency(allianceID, now, rotation, spread) : null);
+    resultData.allAlliances.addAll(resultAllianceList.getData());
+    resultData.allianceList.addAll(plan.getShard());
+    long expiry = now + plan.getInterval();
+    context = plan.getNextContext();
+    log.fine(getContext() + " done retrieving alliance list: " + resultData.allianceList.size() + " of " +
+                 resultData.allAlliances.size() + " selected, " + plan.getShardCount() + " shards");
 
-    // Filter alliance list by alliance filter to produce target batch.
-    final int allianceBatch = allianceFilter;
-    resultData.allianceList.addAll(resultAllianceList.getData()
-                                                     .stream()
-                                                     .filter(x -> (x % 10) == allianceBatch)
-                                                     .collect(Collectors.toList()));
-    int allianceCount = resultData.allianceList.size();
-    log.fine(getContext() + " done retrieving alliance list: " + resultData.allianceList.size() + " retrieved");
-
-    // Prepare filter and context for next tracker
-    allianceFilter = (allianceFilter + 1) % 10;
-    context = String.valueOf(allianceFilter);
-
-    // Retrieve alliance details
+    // Retrieve alliance details.  Calls are made asynchronously, keeping up to a fixed number of calls in flight
+    // until every call for every alliance in the batch has been issued.
     log.fine(getContext() + " retrieving alliance details");
-    final int BATCH_SIZE = 100;
-    Map<Integer, Object> asyncCallMap = Collections.synchronizedMap(new HashMap<>());
-    Map<Integer, Integer> allianceIDMap = new HashMap<>();
-    int resultKey = 0;
-
-    for (int resultCount = 0; resultCount < allianceCount; resultCount += BATCH_SIZE) {
-      // Make the next (max) BATCH_SIZE asynchronous calls
-      int expecting = Math.min(resultCount + BATCH_SIZE, allianceCount);
-      log.fine(getContext() + " starting next batch up to " + expecting + " results");
-      List<Integer> nextAllianceList = resultData.allianceList.subList(resultCount, expecting);
-
-      for (int nextAlliance : nextAllianceList) {
+    AllianceFetcher fetcher = new AllianceFetcher(resultData, cp.getScheduler());
+    try {
+      for (int nextAlliance : resultData.allianceList) {
+        if (fetcher.isFailed()) break;
         // Submit alliance data request
-        allianceIDMap.put(resultKey, nextAlliance);
-        cp.getScheduler()
-          .submit(new ESICaller<>(asyncCallMap, resultKey++, () -> {
-            try {
-              ESIRefThrottle.throttle(endpoint().name());
-              ApiResponse<GetAlliancesAllianceIdOk> resultAlliance = apiInstance.getAlliancesAllianceIdWithHttpInfo(
-                  nextAlliance, null, null);
-              checkCommonProblems(resultAlliance);
-              return resultAlliance.getData();
-            } catch (ApiException e) {
-              ESIRefThrottle.throttle(e);
-              throw e;
-            }
-          }));
-
+        fetcher.fetch(nextAlliance,
+                      etag -> apiInstance.getAlliancesAllianceIdWithHttpInfo(nextAlliance, null, etag),
+                      allianceCache, resultData.allianceMap, resultData.allianceResponses);
         // Submit alliance icon request
-        allianceIDMap.put(resultKey, nextAlliance);
-        cp.getScheduler()
-          .submit(new ESICaller<>(asyncCallMap, resultKey++, () -> {
-            try {
-              ESIRefThrottle.throttle(endpoint().name());
-              ApiResponse<GetAlliancesAllianceIdIconsOk> resultIcons = apiInstance.getAlliancesAllianceIdIconsWithHttpInfo(
-                  nextAlliance, null, null);
-              checkCommonProblems(resultIcons);
-              return resultIcons.getData();
-            } catch (ApiException e) {
-              ESIRefThrottle.throttle(e);
-              throw e;
-            }
-          }));
-
+        fetcher.fetch(nextAlliance,
+                      etag -> apiInstance.getAlliancesAllianceIdIconsWithHttpInfo(nextAlliance, null, etag),
+                      iconCache, resultData.iconMap, resultData.iconResponses);
         // Submit alliance corporations request
-        allianceIDMap.put(resultKey, nextAlliance);
-        cp.getScheduler()
-          .submit(new ESICaller<>(asyncCallMap, resultKey++, () -> {
-            try {
-              ESIRefThrottle.throttle(endpoint().name());
-              ApiResponse<List<Integer>> resultCorpList = apiInstance.getAlliancesAllianceIdCorporationsWithHttpInfo(
-                  nextAlliance, null, null);
-              checkCommonProblems(resultCorpList);
-              return resultCorpList.getData();
-            } catch (ApiException e) {
-              ESIRefThrottle.throttle(e);
-              throw e;
-            }
-          }));
-      }
-      synchronized (asyncCallMap) {
-        while (asyncCallMap.size() < expecting * 3) {
-          log.fine(getContext() + " waiting for " + String.valueOf(expecting * 3 - asyncCallMap.size()) + " responses");
-          try {
-            asyncCallMap.wait(TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS));
-          } catch (InterruptedException e) {
-            throw new IOException(e);
-          }
-        }
+        fetcher.fetch(nextAlliance,
+                      etag -> apiInstance.getAlliancesAllianceIdCorporationsWithHttpInfo(nextAlliance, null, etag),
+                      corpListCache, resultData.corpListMap, resultData.corpListResponses);
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+      throw new IOException(e);
     }
-    log.fine(getContext() + " processing asynchronous results");
-    // Copy responses into data structure or throw exceptions as appropriate
-    for (Map.Entry<Integer, Object> nextEntry : asyncCallMap.entrySet()) {
-      int index = nextEntry.getKey();
-      Object nextResult = nextEntry.getValue();
-      if (nextResult instanceof ApiException)
-        throw (ApiException) nextResult;
-      if (nextResult instanceof IOException)
-        throw (IOException) nextResult;
-      int allianceID = allianceIDMap.get(index);
-      if (nextResult instanceof GetAlliancesAllianceIdOk)
-        resultData.allianceMap.put(allianceID, (GetAlliancesAllianceIdOk) nextResult);
-      else if (nextResult instanceof GetAlliancesAllianceIdIconsOk)
-        resultData.iconMap.put(allianceID, (GetAlliancesAllianceIdIconsOk) nextResult);
-      else if (nextResult instanceof List)
-        resultData.corpListMap.put(allianceID, (List<Integer>) nextResult);
-      else
-        throw new IOException("Result object has unexpected type: " + nextResult.getClass()
-                                                                                .getName());
-    }
-    log.fine(getContext() + " done retrieving alliance details");
+    log.fine(getContext() + " waiting for " + fetcher.size() + " responses");
+    fetcher.await();
+    log.fine(getContext() + " done retrieving alliance details: " + resultData.allianceList.stream()
+                                                                               .filter(resultData::isUnchanged)
+                                                                               .count() + " unchanged");
     return new ESIRefServerResult<>(expiry, resultData);
   }
 
+  /**
+   * Build a selector which matches any of a set of alliance IDs.
+   *
+   * @param allianceIDs alliances to match.
+   * @return a multi-valued selector for the given alliances.
+   */
+  private static AttributeSelector byAllianceIDs(Collection<Integer> allianceIDs) {
+    String values = allianceIDs.stream()
+                               .map(String::valueOf)
+                               .collect(Collectors.joining(", "));
+    return new AttributeSelector("{ values: [" + values + "]}");
+  }
+
+  /**
+   * Retrieve live member corporations for a set of alliances with a single multi-valued query, rather than one
+   * query per alliance.  Retrieved members are cached for commit.
+   *
+   * @param time        time at which members should be live.
+   * @param allianceIDs alliances to retrieve.
+   * @return live member corporations grouped by alliance ID.
+   * @throws IOException on any database error.
+   */
+  private Map<Long, List<AllianceMemberCorporation>> retrieveLiveMembers(long time,
+                                                                         Collection<Integer> allianceIDs)
+      throws IOException {
+    Map<Long, List<AllianceMemberCorporation>> result = new HashMap<>();
+    if (allianceIDs.isEmpty()) return result;
+    AttributeSelector byAllianceID = byAllianceIDs(allianceIDs);
+    List<AllianceMemberCorporation> members = retrieveLive(time, (long contid, int max, boolean reverse,
+                                                                  AttributeSelector at) ->
+        AllianceMemberCorporation.accessQuery(contid, max, reverse, at, byAllianceID, ANY_SELECTOR));
+    cacheLive(AllianceMemberCorporation.class, members, x -> Pair.of(x.getAllianceID(), x.getCorporationID()));
+    for (AllianceMemberCorporation next : members) {
+      result.computeIfAbsent(next.getAllianceID(), k -> new ArrayList<>())
+            .add(next);
+    }
+    return result;
+  }
+
+  /**
+   * Retrieve live icons for a set of alliances with a single multi-valued query, rather than one query per
+   * alliance.  Retrieved icons are cached for commit.
+   *
+   * @param time        time at which icons should be live.
+   * @param allianceIDs alliances to retrieve.
+   * @return live icons by alliance ID.
+   * @throws IOException on any database error.
+   */
+  private Map<Long, AllianceIcon> retrieveLiveIcons(long time, Collection<Integer> allianceIDs)
+      throws IOException {
+    Map<Long, AllianceIcon> result = new HashMap<>();
+    if (allianceIDs.isEmpty()) return result;
+    AttributeSelector byAllianceID = byAllianceIDs(allianceIDs);
+    List<AllianceIcon> icons = retrieveLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+        AllianceIcon.accessQuery(contid, max, reverse, at, byAllianceID, ANY_SELECTOR, ANY_SELECTOR));
+    cacheLive(AllianceIcon.class, icons, AllianceIcon::getAllianceID);
+    for (AllianceIcon next : icons) {
+      result.put(next.getAllianceID(), next);
+    }
+    return result;
+  }
+
   @SuppressWarnings("RedundantThrows")
   @Override
   protected void processServerData(long time, ESIRefServerResult<AllianceServerData> data,
                                    List<RefCachedData> updates) throws IOException {
     // Detect any missing alliances and mark their data for removal
     AllianceServerData serverData = data.getData();
-    List<Alliance> existing = retrieveAll(time,
-                                          (long contid, AttributeSelector at) -> Alliance.accessQuery(contid, 1000,
-                                                                                                      false, at,
-                                                                                                      ANY_SELECTOR,
-                                                                                                      ANY_SELECTOR,
-                                                                                                      ANY_SELECTOR,
-                                                                                                      ANY_SELECTOR,
-                                                                                                      ANY_SELECTOR,
-                                                                                                      ANY_SELECTOR,
-                                                                                                      ANY_SELECTOR,
-                                                                                                      ANY_SELECTOR,
-                                                                                                      ANY_SELECTOR));
-    Set<Integer> current = new HashSet<>(serverData.allianceList);
+    List<Alliance> existing = retrieveLive(time,
+                                           (long contid, int max, boolean reverse, AttributeSelector at) ->
+                                               Alliance.accessQuery(contid, max, reverse, at, ANY_SELECTOR,
+                                                                    ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR,
+                                                                    ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR,
+                                                                    ANY_SELECTOR, ANY_SELECTOR));
+    cacheLive(Alliance.class, existing, Alliance::getAllianceID);
+    for (Alliance nextAlliance : existing) {
+      if (!serverData.allAlliances.contains((int) nextAlliance.getAllianceID()))
+        serverData.removed.add((int) nextAlliance.getAllianceID());
+    }
+    // Retrieve icons and member corporations for every alliance we'll update or remove with one query each
+    Set<Integer> affected = new HashSet<>(serverData.removed);
+    for (int allianceID : serverData.allianceList) {
+      if (!serverData.isUnchanged(allianceID)) affected.add(allianceID);
+    }
+    Map<Long, AllianceIcon> liveIcons = retrieveLiveIcons(time, affected);
+    Map<Long, List<AllianceMemberCorporation>> liveMembers = retrieveLiveMembers(time, affected);
     for (Alliance nextAlliance : existing) {
-      if (!current.contains((int) nextAlliance.getAllianceID())) {
+      if (serverData.removed.contains((int) nextAlliance.getAllianceID())) {
         // This alliance no longer exists.  EOL the Alliance, it's icon and any member corporations
         nextAlliance.evolve(null, time);
         updates.add(nextAlliance);
         // Handle icons associated with this alliance
-        AllianceIcon existingIcon = AllianceIcon.get(time, nextAlliance.getAllianceID());
+        AllianceIcon existingIcon = liveIcons.get(nextAlliance.getAllianceID());
         if (existingIcon != null) {
           existingIcon.evolve(null, time);
           updates.add(existingIcon);
         }
         // Handle member corporations associated with this alliance
-        AttributeSelector byAllianceID = new AttributeSelector("{ values: [" + nextAlliance.getAllianceID() + "]}");
-        List<AllianceMemberCorporation> existingMembers = retrieveAll(time,
-                                                                      (long contid, AttributeSelector at) -> AllianceMemberCorporation.accessQuery(
-                                                                          contid, 1000, false, at, byAllianceID,
-                                                                          ANY_SELECTOR));
-        for (AllianceMemberCorporation nextCorp : existingMembers) {
+        for (AllianceMemberCorporation nextCorp : liveMembers.getOrDefault(nextAlliance.getAllianceID(),
+                                                                           Collections.emptyList())) {
           nextCorp.evolve(null, time);
           updates.add(nextCorp);
         }
@@ -270,6 +470,9 @@ public class ESIAllianceSync extends AbstractESIRefSync<ESIAllianceSync.Alliance
       alMap.put(na.getAllianceID(), na);
     }
     for (int allianceID : serverData.allianceList) {
+      // Skip alliances which are unchanged since their data was last stored
+      if (serverData.isUnchanged(allianceID)) continue;
+      int updateCount = updates.size();
       // Construct and add Alliance for update
       GetAlliancesAllianceIdOk allianceData = serverData.allianceMap.get(allianceID);
       assert allianceData != null;
@@ -292,34 +495,62 @@ public class ESIAllianceSync extends AbstractESIRefSync<ESIAllianceSync.Alliance
       // Construct and add AllianceIcon for update
       GetAlliancesAllianceIdIconsOk allianceIcon = serverData.iconMap.get(allianceID);
       assert allianceIcon != null;
-      AllianceIcon existingIcon = AllianceIcon.get(time, allianceID);
+      AllianceIcon existingIcon = liveIcons.get((long) allianceID);
       AllianceIcon ni = new AllianceIcon(allianceID, allianceIcon.getPx64x64(), allianceIcon.getPx128x128());
       if (existingIcon == null || !ni.equivalent(existingIcon)) {
         updates.add(ni);
       }
-      // Construct and add AllianceMemberCorporations for update
-      AttributeSelector byAllianceID = new AttributeSelector("{ values: [" + allianceID + "]}");
-      List<AllianceMemberCorporation> existingMembers = retrieveAll(time,
-                                                                    (long contid, AttributeSelector at) -> AllianceMemberCorporation.accessQuery(
-                                                                        contid, 1000, false, at, byAllianceID,
-                                                                        ANY_SELECTOR));
-      Set<Long> storedMembers = new HashSet<>();
-      for (AllianceMemberCorporation nc : existingMembers) {
-        storedMembers.add(nc.getCorporationID());
-      }
+      // Construct and add AllianceMemberCorporations for update.  Any corporations that are no longer members
+      // are scheduled for EOL.
+      List<AllianceMemberCorporation> members = new ArrayList<>();
       for (int nextCorpID : allianceCorpList) {
-        if (!storedMembers.contains((long) nextCorpID))
-          updates.add(new AllianceMemberCorporation(allianceID, nextCorpID));
-      }
-      // Check for any corporations that are no longer members and delete
-      Set<Integer> existingCorpMembers = new HashSet<>(allianceCorpList);
-      for (AllianceMemberCorporation nextCorp : existingMembers) {
-        if (!existingCorpMembers.contains((int) nextCorp.getCorporationID())) {
-          nextCorp.evolve(null, time);
-          updates.add(nextCorp);
-        }
+        members.add(new AllianceMemberCorporation(allianceID, nextCorpID));
       }
+      reconcile(time, AllianceMemberCorporation.class, members,
+                liveMembers.getOrDefault((long) allianceID, Collections.emptyList()),
+                AllianceMemberCorporation::getCorporationID, x -> Pair.of(x.getAllianceID(), x.getCorporationID()),
+                updates);
+      if (updates.size() > updateCount) serverData.changed.add(allianceID);
     }
   }
 
+  @Override
+  protected void updateStored(AllianceServerData data) {
+    // Responses are only cached once stored, so that data from a failed update is retrieved in full next time.
+    // Changes are likewise only recorded once stored, so that changes which were rolled back are not counted.
+    long now = OrbitalProperties.getCurrentTime();
+    for (int allianceID : data.allianceList) {
+      if (data.changed.contains(allianceID)) AllianceChangeStats.changed(allianceID);
+      AllianceChangeStats.refreshed(allianceID, now);
+      cacheResponse(allianceCache, data.allianceResponses, allianceID);
+      cacheResponse(iconCache, data.iconResponses, allianceID);
+      cacheResponse(corpListCache, data.corpListResponses, allianceID);
+    }
+    for (int allianceID : data.removed) {
+      AllianceChangeStats.remove(allianceID);
+      allianceCache.remove(allianceID);
+      iconCache.remove(allianceID);
+      corpListCache.remove(allianceID);
+    }
+  }
+
+  private static <A> void cacheResponse(Map<Integer, CachedResponse<A>> cache,
+                                        Map<Integer, CachedResponse<A>> responses, int allianceID) {
+    CachedResponse<A> response = responses.get(allianceID);
+    if (response == null)
+      cache.remove(allianceID);
+    else
+      cache.put(allianceID, response);
+  }
+
+  /**
+   * Discard all cached alliance responses.  The next synchronization of each alliance will retrieve and
+   * process all of its data.
+   */
+  static void clearResponseCache() {
+    allianceCache.clear();
+    iconCache.clear();
+    corpListCache.clear();
+  }
+
 }
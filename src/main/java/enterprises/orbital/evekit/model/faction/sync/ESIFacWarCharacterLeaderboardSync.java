@@ -13,9 +13,7 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -34,20 +32,32 @@ public class ESIFacWarCharacterLeaderboardSync extends AbstractESIRefSync<GetFwL
     RefCachedData existing;
     if (item instanceof CharacterKillStat) {
       CharacterKillStat api = (CharacterKillStat) item;
-      existing = api.getLifeStart() == 0 ? CharacterKillStat.get(time, api.getAttribute(), api.getCharacterID()) : null;
+      existing = api.getLifeStart() == 0 ? findLive(CharacterKillStat.class,
+                                                    Pair.of(api.getAttribute(), api.getCharacterID()),
+                                                    () -> CharacterKillStat.get(time, api.getAttribute(),
+                                                                                api.getCharacterID())) : null;
     } else {
       CharacterVictoryPointStat api = (CharacterVictoryPointStat) item;
-      existing = api.getLifeStart() == 0 ? CharacterVictoryPointStat.get(time, api.getAttribute(), api.getCharacterID()) : null;
+      existing = api.getLifeStart() == 0 ? findLive(CharacterVictoryPointStat.class,
+                                                    Pair.of(api.getAttribute(), api.getCharacterID()),
+                                                    () -> CharacterVictoryPointStat.get(time, api.getAttribute(),
+                                                                                        api.getCharacterID())) : null;
     }
     evolveOrAdd(time, existing, item);
   }
 
+  @Override
+  protected Object partitionKey(RefCachedData item) {
+    if (item instanceof CharacterKillStat) return ((CharacterKillStat) item).getCharacterID();
+    return ((CharacterVictoryPointStat) item).getCharacterID();
+  }
+
   @Override
   protected ESIRefServerResult<GetFwLeaderboardsCharactersOk> getServerData(
       ESIRefClientProvider cp) throws ApiException, IOException {
     FactionWarfareApi apiInstance = cp.getFactionWarfareApi();
-    ESIRefThrottle.throttle(endpoint().name());
-    ApiResponse<GetFwLeaderboardsCharactersOk> result = apiInstance.getFwLeaderboardsCharactersWithHttpInfo(null, null);
+    ApiResponse<GetFwLeaderboardsCharactersOk> result = callESI(
+        () -> apiInstance.getFwLeaderboardsCharactersWithHttpInfo(null, null));
     checkCommonProblems(result);
     return new ESIRefServerResult<>(extractExpiry(result, OrbitalProperties.getCurrentTime() + maxDelay()), result.getData());
   }
@@ -81,7 +91,6 @@ public class ESIFacWarCharacterLeaderboardSync extends AbstractESIRefSync<GetFwL
     GetFwLeaderboardsCharactersOk serverData = data.getData();
     // Create updates for all entries.
     // Collect kills first
-    Set<Pair<StatAttribute, Integer>> seenCharacterKills = new HashSet<>();
     List<CharacterKillStat> allKills = new ArrayList<>();
     allKills.addAll(produceKillStatList(serverData.getKills()
                                                   .getActiveTotal(), StatAttribute.TOTAL,
@@ -95,12 +104,7 @@ public class ESIFacWarCharacterLeaderboardSync extends AbstractESIRefSync<GetFwL
                                                   .getYesterday(), StatAttribute.YESTERDAY,
                                         GetFwLeaderboardsCharactersYesterdayYesterday::getCharacterId,
                                         GetFwLeaderboardsCharactersYesterdayYesterday::getAmount));
-    for (CharacterKillStat next : allKills) {
-      seenCharacterKills.add(Pair.of(next.getAttribute(), next.getCharacterID()));
-    }
-    updates.addAll(allKills);
     // Now collect victory points
-    Set<Pair<StatAttribute, Integer>> seenCharacterVPs = new HashSet<>();
     List<CharacterVictoryPointStat> allVPs = new ArrayList<>();
     allVPs.addAll(produceVPStatList(serverData.getVictoryPoints()
                                               .getActiveTotal(), StatAttribute.TOTAL,
@@ -114,27 +118,19 @@ public class ESIFacWarCharacterLeaderboardSync extends AbstractESIRefSync<GetFwL
                                               .getYesterday(), StatAttribute.YESTERDAY,
                                     GetFwLeaderboardsCharactersYesterdayYesterday1::getCharacterId,
                                     GetFwLeaderboardsCharactersYesterdayYesterday1::getAmount));
-    for (CharacterVictoryPointStat next : allVPs) {
-      seenCharacterVPs.add(Pair.of(next.getAttribute(), next.getCharacterID()));
-    }
-    updates.addAll(allVPs);
-    // Look for any character/attribute pairs not contained in the update and schedule for EOL
-    List<CharacterKillStat> storedKills = retrieveAll(time, (long contid, AttributeSelector at) ->
-        CharacterKillStat.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR));
-    for (CharacterKillStat next : storedKills) {
-      if (!seenCharacterKills.contains(Pair.of(next.getAttribute(), next.getCharacterID()))) {
-        next.evolve(null, time);
-        updates.add(next);
-      }
-    }
-    List<CharacterVictoryPointStat> storedVPs = retrieveAll(time, (long contid, AttributeSelector at) ->
-        CharacterVictoryPointStat.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR));
-    for (CharacterVictoryPointStat next : storedVPs) {
-      if (!seenCharacterVPs.contains(Pair.of(next.getAttribute(), next.getCharacterID()))) {
-        next.evolve(null, time);
-        updates.add(next);
-      }
-    }
+    // Reconcile with stored stats.  Any character/attribute pairs not contained in the update are scheduled for EOL.
+    reconcile(time, CharacterKillStat.class, allKills,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  CharacterKillStat.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR)),
+              x -> ESIRefReconciler.pack(x.getAttribute()
+                                          .ordinal(), x.getCharacterID()),
+              x -> Pair.of(x.getAttribute(), x.getCharacterID()), updates);
+    reconcile(time, CharacterVictoryPointStat.class, allVPs,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  CharacterVictoryPointStat.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR)),
+              x -> ESIRefReconciler.pack(x.getAttribute()
+                                          .ordinal(), x.getCharacterID()),
+              x -> Pair.of(x.getAttribute(), x.getCharacterID()), updates);
   }
 
 }
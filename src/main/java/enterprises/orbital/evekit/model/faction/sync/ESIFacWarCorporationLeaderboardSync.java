@@ -13,9 +13,7 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -34,20 +32,32 @@ public class ESIFacWarCorporationLeaderboardSync extends AbstractESIRefSync<GetF
     RefCachedData existing;
     if (item instanceof CorporationKillStat) {
       CorporationKillStat api = (CorporationKillStat) item;
-      existing = api.getLifeStart() == 0 ? CorporationKillStat.get(time, api.getAttribute(), api.getCorporationID()) : null;
+      existing = api.getLifeStart() == 0 ? findLive(CorporationKillStat.class,
+                                                    Pair.of(api.getAttribute(), api.getCorporationID()),
+                                                    () -> CorporationKillStat.get(time, api.getAttribute(),
+                                                                                  api.getCorporationID())) : null;
     } else {
       CorporationVictoryPointStat api = (CorporationVictoryPointStat) item;
-      existing = api.getLifeStart() == 0 ? CorporationVictoryPointStat.get(time, api.getAttribute(), api.getCorporationID()) : null;
+      existing = api.getLifeStart() == 0 ? findLive(CorporationVictoryPointStat.class,
+                                                    Pair.of(api.getAttribute(), api.getCorporationID()),
+                                                    () -> CorporationVictoryPointStat.get(time, api.getAttribute(),
+                                                                                          api.getCorporationID())) : null;
     }
     evolveOrAdd(time, existing, item);
   }
 
+  @Override
+  protected Object partitionKey(RefCachedData item) {
+    if (item instanceof CorporationKillStat) return ((CorporationKillStat) item).getCorporationID();
+    return ((CorporationVictoryPointStat) item).getCorporationID();
+  }
+
   @Override
   protected ESIRefServerResult<GetFwLeaderboardsCorporationsOk> getServerData(
       ESIRefClientProvider cp) throws ApiException, IOException {
     FactionWarfareApi apiInstance = cp.getFactionWarfareApi();
-    ESIRefThrottle.throttle(endpoint().name());
-    ApiResponse<GetFwLeaderboardsCorporationsOk> result = apiInstance.getFwLeaderboardsCorporationsWithHttpInfo(null, null);
+    ApiResponse<GetFwLeaderboardsCorporationsOk> result = callESI(
+        () -> apiInstance.getFwLeaderboardsCorporationsWithHttpInfo(null, null));
     checkCommonProblems(result);
     return new ESIRefServerResult<>(extractExpiry(result, OrbitalProperties.getCurrentTime() + maxDelay()), result.getData());
   }
@@ -81,7 +91,6 @@ public class ESIFacWarCorporationLeaderboardSync extends AbstractESIRefSync<GetF
     GetFwLeaderboardsCorporationsOk serverData = data.getData();
     // Create updates for all entries.
     // Collect kills first
-    Set<Pair<StatAttribute, Integer>> seenCorporationKills = new HashSet<>();
     List<CorporationKillStat> allKills = new ArrayList<>();
     allKills.addAll(produceKillStatList(serverData.getKills()
                                                   .getActiveTotal(), StatAttribute.TOTAL,
@@ -95,12 +104,7 @@ public class ESIFacWarCorporationLeaderboardSync extends AbstractESIRefSync<GetF
                                                   .getYesterday(), StatAttribute.YESTERDAY,
                                         GetFwLeaderboardsCorporationsYesterdayYesterday::getCorporationId,
                                         GetFwLeaderboardsCorporationsYesterdayYesterday::getAmount));
-    for (CorporationKillStat next : allKills) {
-      seenCorporationKills.add(Pair.of(next.getAttribute(), next.getCorporationID()));
-    }
-    updates.addAll(allKills);
     // Now collect victory points
-    Set<Pair<StatAttribute, Integer>> seenCorporationVPs = new HashSet<>();
     List<CorporationVictoryPointStat> allVPs = new ArrayList<>();
     allVPs.addAll(produceVPStatList(serverData.getVictoryPoints()
                                               .getActiveTotal(), StatAttribute.TOTAL,
@@ -114,27 +118,19 @@ public class ESIFacWarCorporationLeaderboardSync extends AbstractESIRefSync<GetF
                                               .getYesterday(), StatAttribute.YESTERDAY,
                                     GetFwLeaderboardsCorporationsYesterdayYesterday1::getCorporationId,
                                     GetFwLeaderboardsCorporationsYesterdayYesterday1::getAmount));
-    for (CorporationVictoryPointStat next : allVPs) {
-      seenCorporationVPs.add(Pair.of(next.getAttribute(), next.getCorporationID()));
-    }
-    updates.addAll(allVPs);
-    // Look for any corporation/attribute pairs not contained in the update and schedule for EOL
-    List<CorporationKillStat> storedKills = retrieveAll(time, (long contid, AttributeSelector at) ->
-        CorporationKillStat.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR));
-    for (CorporationKillStat next : storedKills) {
-      if (!seenCorporationKills.contains(Pair.of(next.getAttribute(), next.getCorporationID()))) {
-        next.evolve(null, time);
-        updates.add(next);
-      }
-    }
-    List<CorporationVictoryPointStat> storedVPs = retrieveAll(time, (long contid, AttributeSelector at) ->
-        CorporationVictoryPointStat.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR));
-    for (CorporationVictoryPointStat next : storedVPs) {
-      if (!seenCorporationVPs.contains(Pair.of(next.getAttribute(), next.getCorporationID()))) {
-        next.evolve(null, time);
-        updates.add(next);
-      }
-    }
+    // Reconcile with stored stats.  Any corporation/attribute pairs not contained in the update are scheduled for EOL.
+    reconcile(time, CorporationKillStat.class, allKills,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  CorporationKillStat.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR)),
+              x -> ESIRefReconciler.pack(x.getAttribute()
+                                          .ordinal(), x.getCorporationID()),
+              x -> Pair.of(x.getAttribute(), x.getCorporationID()), updates);
+    reconcile(time, CorporationVictoryPointStat.class, allVPs,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  CorporationVictoryPointStat.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR)),
+              x -> ESIRefReconciler.pack(x.getAttribute()
+                                          .ordinal(), x.getCorporationID()),
+              x -> Pair.of(x.getAttribute(), x.getCorporationID()), updates);
   }
 
 }
@@ -13,9 +13,7 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -34,20 +32,31 @@ public class ESIFacWarFactionLeaderboardSync extends AbstractESIRefSync<GetFwLea
     RefCachedData existing;
     if (item instanceof FactionKillStat) {
       FactionKillStat api = (FactionKillStat) item;
-      existing = api.getLifeStart() == 0 ? FactionKillStat.get(time, api.getAttribute(), api.getFactionID()) : null;
+      existing = api.getLifeStart() == 0 ? findLive(FactionKillStat.class,
+                                                    Pair.of(api.getAttribute(), api.getFactionID()),
+                                                    () -> FactionKillStat.get(time, api.getAttribute(),
+                                                                              api.getFactionID())) : null;
     } else {
       FactionVictoryPointStat api = (FactionVictoryPointStat) item;
-      existing = api.getLifeStart() == 0 ? FactionVictoryPointStat.get(time, api.getAttribute(), api.getFactionID()) : null;
+      existing = api.getLifeStart() == 0 ? findLive(FactionVictoryPointStat.class,
+                                                    Pair.of(api.getAttribute(), api.getFactionID()),
+                                                    () -> FactionVictoryPointStat.get(time, api.getAttribute(),
+                                                                                      api.getFactionID())) : null;
     }
     evolveOrAdd(time, existing, item);
   }
 
+  @Override
+  protected Object partitionKey(RefCachedData item) {
+    if (item instanceof FactionKillStat) return ((FactionKillStat) item).getFactionID();
+    return ((FactionVictoryPointStat) item).getFactionID();
+  }
+
   @Override
   protected ESIRefServerResult<GetFwLeaderboardsOk> getServerData(
       ESIRefClientProvider cp) throws ApiException, IOException {
     FactionWarfareApi apiInstance = cp.getFactionWarfareApi();
-    ESIRefThrottle.throttle(endpoint().name());
-    ApiResponse<GetFwLeaderboardsOk> result = apiInstance.getFwLeaderboardsWithHttpInfo(null, null);
+    ApiResponse<GetFwLeaderboardsOk> result = callESI(() -> apiInstance.getFwLeaderboardsWithHttpInfo(null, null));
     checkCommonProblems(result);
     return new ESIRefServerResult<>(extractExpiry(result, OrbitalProperties.getCurrentTime() + maxDelay()), result.getData());
   }
@@ -80,7 +89,6 @@ public class ESIFacWarFactionLeaderboardSync extends AbstractESIRefSync<GetFwLea
     GetFwLeaderboardsOk serverData = data.getData();
     // Create updates for all entries.
     // Collect kills first
-    Set<Pair<StatAttribute, Integer>> seenFactionKills = new HashSet<>();
     List<FactionKillStat> allKills = new ArrayList<>();
     allKills.addAll(produceKillStatList(serverData.getKills()
                                                   .getActiveTotal(), StatAttribute.TOTAL,
@@ -94,12 +102,7 @@ public class ESIFacWarFactionLeaderboardSync extends AbstractESIRefSync<GetFwLea
                                                   .getYesterday(), StatAttribute.YESTERDAY,
                                         GetFwLeaderboardsYesterdayYesterday::getFactionId,
                                         GetFwLeaderboardsYesterdayYesterday::getAmount));
-    for (FactionKillStat next : allKills) {
-      seenFactionKills.add(Pair.of(next.getAttribute(), next.getFactionID()));
-    }
-    updates.addAll(allKills);
     // Now collect victory points
-    Set<Pair<StatAttribute, Integer>> seenFactionVPs = new HashSet<>();
     List<FactionVictoryPointStat> allVPs = new ArrayList<>();
     allVPs.addAll(produceVPStatList(serverData.getVictoryPoints()
                                               .getActiveTotal(), StatAttribute.TOTAL,
@@ -113,27 +116,19 @@ public class ESIFacWarFactionLeaderboardSync extends AbstractESIRefSync<GetFwLea
                                               .getYesterday(), StatAttribute.YESTERDAY,
                                     GetFwLeaderboardsYesterdayYesterday1::getFactionId,
                                     GetFwLeaderboardsYesterdayYesterday1::getAmount));
-    for (FactionVictoryPointStat next : allVPs) {
-      seenFactionVPs.add(Pair.of(next.getAttribute(), next.getFactionID()));
-    }
-    updates.addAll(allVPs);
-    // Look for any faction/attribute pairs not contained in the update and schedule for EOL
-    List<FactionKillStat> storedKills = retrieveAll(time, (long contid, AttributeSelector at) ->
-        FactionKillStat.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR));
-    for (FactionKillStat next : storedKills) {
-      if (!seenFactionKills.contains(Pair.of(next.getAttribute(), next.getFactionID()))) {
-        next.evolve(null, time);
-        updates.add(next);
-      }
-    }
-    List<FactionVictoryPointStat> storedVPs = retrieveAll(time, (long contid, AttributeSelector at) ->
-        FactionVictoryPointStat.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR));
-    for (FactionVictoryPointStat next : storedVPs) {
-      if (!seenFactionVPs.contains(Pair.of(next.getAttribute(), next.getFactionID()))) {
-        next.evolve(null, time);
-        updates.add(next);
-      }
-    }
+    // Reconcile with stored stats.  Any faction/attribute pairs not contained in the update are scheduled for EOL.
+    reconcile(time, FactionKillStat.class, allKills,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  FactionKillStat.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR)),
+              x -> ESIRefReconciler.pack(x.getAttribute()
+                                          .ordinal(), x.getFactionID()),
+              x -> Pair.of(x.getAttribute(), x.getFactionID()), updates);
+    reconcile(time, FactionVictoryPointStat.class, allVPs,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  FactionVictoryPointStat.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR)),
+              x -> ESIRefReconciler.pack(x.getAttribute()
+                                          .ordinal(), x.getFactionID()),
+              x -> Pair.of(x.getAttribute(), x.getFactionID()), updates);
   }
 
 }
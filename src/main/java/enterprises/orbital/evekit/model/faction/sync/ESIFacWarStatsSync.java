@@ -9,9 +9,8 @@ import enterprises.orbital.evekit.model.*;
 import enterprises.orbital.evekit.model.faction.FactionStats;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Logger;
 
 public class ESIFacWarStatsSync extends AbstractESIRefSync<List<GetFwStats200Ok>> {
@@ -28,7 +27,8 @@ public class ESIFacWarStatsSync extends AbstractESIRefSync<List<GetFwStats200Ok>
     assert item instanceof FactionStats;
     FactionStats api = (FactionStats) item;
     // Lookup only necessary if item is an update
-    FactionStats existing = api.getLifeStart() == 0 ? FactionStats.get(time, api.getFactionID()) : null;
+    FactionStats existing = api.getLifeStart() == 0 ? findLive(FactionStats.class, api.getFactionID(),
+                                                              () -> FactionStats.get(time, api.getFactionID())) : null;
     evolveOrAdd(time, existing, api);
   }
 
@@ -36,8 +36,7 @@ public class ESIFacWarStatsSync extends AbstractESIRefSync<List<GetFwStats200Ok>
   protected ESIRefServerResult<List<GetFwStats200Ok>> getServerData(
       ESIRefClientProvider cp) throws ApiException, IOException {
     FactionWarfareApi apiInstance = cp.getFactionWarfareApi();
-    ESIRefThrottle.throttle(endpoint().name());
-    ApiResponse<List<GetFwStats200Ok>> result = apiInstance.getFwStatsWithHttpInfo(null, null);
+    ApiResponse<List<GetFwStats200Ok>> result = callESI(() -> apiInstance.getFwStatsWithHttpInfo(null, null));
     checkCommonProblems(result);
     return new ESIRefServerResult<>(extractExpiry(result, OrbitalProperties.getCurrentTime() + maxDelay()), result.getData());
   }
@@ -47,26 +46,23 @@ public class ESIFacWarStatsSync extends AbstractESIRefSync<List<GetFwStats200Ok>
                                    List<RefCachedData> updates) throws IOException {
     List<GetFwStats200Ok> serverData = data.getData();
     // Create updates for all entries
-    Set<Integer> seenFactions = new HashSet<>();
+    List<FactionStats> stats = new ArrayList<>();
     for (GetFwStats200Ok next : serverData) {
-      updates.add(new FactionStats(next.getFactionId(), next.getKills().getLastWeek(),
-                                   next.getKills().getTotal(), next.getKills().getYesterday(),
-                                   next.getPilots(),
-                                   next.getSystemsControlled(),
-                                   next.getVictoryPoints().getLastWeek(),
-                                   next.getVictoryPoints().getTotal(),
-                                   next.getVictoryPoints().getYesterday()));
-      seenFactions.add(next.getFactionId());
-    }
-    // Look for any factions not contained in the update and schedule for EOL
-    List<FactionStats> stored = retrieveAll(time, (long contid, AttributeSelector at) ->
-        FactionStats.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR));
-    for (FactionStats next : stored) {
-      if (!seenFactions.contains(next.getFactionID())) {
-        next.evolve(null, time);
-        updates.add(next);
-      }
+      stats.add(new FactionStats(next.getFactionId(), next.getKills().getLastWeek(),
+                                 next.getKills().getTotal(), next.getKills().getYesterday(),
+                                 next.getPilots(),
+                                 next.getSystemsControlled(),
+                                 next.getVictoryPoints().getLastWeek(),
+                                 next.getVictoryPoints().getTotal(),
+                                 next.getVictoryPoints().getYesterday()));
     }
+    // Reconcile with stored stats.  Any factions not contained in the update are scheduled for EOL.
+    reconcile(time, FactionStats.class, stats,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  FactionStats.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR,
+                                           ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR,
+                                           ANY_SELECTOR)),
+              FactionStats::getFactionID, FactionStats::getFactionID, updates);
   }
 
 }
@@ -9,9 +9,8 @@ import enterprises.orbital.evekit.model.*;
 import enterprises.orbital.evekit.model.faction.FactionWarSystem;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Logger;
 
 public class ESIFacWarSystemsSync extends AbstractESIRefSync<List<GetFwSystems200Ok>> {
@@ -28,7 +27,9 @@ public class ESIFacWarSystemsSync extends AbstractESIRefSync<List<GetFwSystems20
     assert item instanceof FactionWarSystem;
     FactionWarSystem api = (FactionWarSystem) item;
     // Lookup only necessary if item is an update
-    FactionWarSystem existing = api.getLifeStart() == 0 ? FactionWarSystem.get(time, api.getSolarSystemID()) : null;
+    FactionWarSystem existing = api.getLifeStart() == 0 ? findLive(FactionWarSystem.class, api.getSolarSystemID(),
+                                                                  () -> FactionWarSystem.get(time,
+                                                                                             api.getSolarSystemID())) : null;
     evolveOrAdd(time, existing, api);
   }
 
@@ -36,8 +37,7 @@ public class ESIFacWarSystemsSync extends AbstractESIRefSync<List<GetFwSystems20
   protected ESIRefServerResult<List<GetFwSystems200Ok>> getServerData(
       ESIRefClientProvider cp) throws ApiException, IOException {
     FactionWarfareApi apiInstance = cp.getFactionWarfareApi();
-    ESIRefThrottle.throttle(endpoint().name());
-    ApiResponse<List<GetFwSystems200Ok>> result = apiInstance.getFwSystemsWithHttpInfo(null, null);
+    ApiResponse<List<GetFwSystems200Ok>> result = callESI(() -> apiInstance.getFwSystemsWithHttpInfo(null, null));
     checkCommonProblems(result);
     return new ESIRefServerResult<>(extractExpiry(result, OrbitalProperties.getCurrentTime() + maxDelay()), result.getData());
   }
@@ -47,25 +47,21 @@ public class ESIFacWarSystemsSync extends AbstractESIRefSync<List<GetFwSystems20
                                    List<RefCachedData> updates) throws IOException {
     List<GetFwSystems200Ok> serverData = data.getData();
     // Create updates for all entries
-    Set<Integer> seenSystems = new HashSet<>();
+    List<FactionWarSystem> systems = new ArrayList<>();
     for (GetFwSystems200Ok next : serverData) {
-      updates.add(new FactionWarSystem(next.getOccupierFactionId(),
+      systems.add(new FactionWarSystem(next.getOccupierFactionId(),
                                        next.getOwnerFactionId(),
                                        next.getSolarSystemId(),
                                        next.getVictoryPoints(),
                                        next.getVictoryPointsThreshold(),
                                        next.getContested().toString()));
-      seenSystems.add(next.getSolarSystemId());
-    }
-    // Look for any systems not contained in the update and schedule for EOL
-    List<FactionWarSystem> stored = retrieveAll(time, (long contid, AttributeSelector at) ->
-        FactionWarSystem.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR));
-    for (FactionWarSystem next : stored) {
-      if (!seenSystems.contains(next.getSolarSystemID())) {
-        next.evolve(null, time);
-        updates.add(next);
-      }
     }
+    // Reconcile with stored systems.  Any systems not contained in the update are scheduled for EOL.
+    reconcile(time, FactionWarSystem.class, systems,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  FactionWarSystem.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR,
+                                               ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR)),
+              FactionWarSystem::getSolarSystemID, FactionWarSystem::getSolarSystemID, updates);
   }
 
 }
@@ -10,9 +10,8 @@ import enterprises.orbital.evekit.model.faction.FactionWar;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Logger;
 
 public class ESIFacWarWarsSync extends AbstractESIRefSync<List<GetFwWars200Ok>> {
@@ -29,7 +28,10 @@ public class ESIFacWarWarsSync extends AbstractESIRefSync<List<GetFwWars200Ok>>
     assert item instanceof FactionWar;
     FactionWar api = (FactionWar) item;
     // Lookup only necessary if item is an update
-    FactionWar existing = api.getLifeStart() == 0 ? FactionWar.get(time, api.getAgainstID(), api.getFactionID()) : null;
+    FactionWar existing = api.getLifeStart() == 0 ? findLive(FactionWar.class,
+                                                            Pair.of(api.getAgainstID(), api.getFactionID()),
+                                                            () -> FactionWar.get(time, api.getAgainstID(),
+                                                                                 api.getFactionID())) : null;
     evolveOrAdd(time, existing, api);
   }
 
@@ -37,8 +39,7 @@ public class ESIFacWarWarsSync extends AbstractESIRefSync<List<GetFwWars200Ok>>
   protected ESIRefServerResult<List<GetFwWars200Ok>> getServerData(
       ESIRefClientProvider cp) throws ApiException, IOException {
     FactionWarfareApi apiInstance = cp.getFactionWarfareApi();
-    ESIRefThrottle.throttle(endpoint().name());
-    ApiResponse<List<GetFwWars200Ok>> result = apiInstance.getFwWarsWithHttpInfo(null, null);
+    ApiResponse<List<GetFwWars200Ok>> result = callESI(() -> apiInstance.getFwWarsWithHttpInfo(null, null));
     checkCommonProblems(result);
     return new ESIRefServerResult<>(extractExpiry(result, OrbitalProperties.getCurrentTime() + maxDelay()), result.getData());
   }
@@ -48,20 +49,16 @@ public class ESIFacWarWarsSync extends AbstractESIRefSync<List<GetFwWars200Ok>>
                                    List<RefCachedData> updates) throws IOException {
     List<GetFwWars200Ok> serverData = data.getData();
     // Create updates for all war entries
-    Set<Pair<Integer, Integer>> seenWars = new HashSet<>();
+    List<FactionWar> wars = new ArrayList<>();
     for (GetFwWars200Ok next : serverData) {
-      updates.add(new FactionWar(next.getAgainstId(), next.getFactionId()));
-      seenWars.add(Pair.of(next.getAgainstId(), next.getFactionId()));
-    }
-    // Look for any wars not contained in the update and schedule for EOL
-    List<FactionWar> stored = retrieveAll(time, (long contid, AttributeSelector at) ->
-        FactionWar.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR));
-    for (FactionWar next : stored) {
-      if (!seenWars.contains(Pair.of(next.getAgainstID(), next.getFactionID()))) {
-        next.evolve(null, time);
-        updates.add(next);
-      }
+      wars.add(new FactionWar(next.getAgainstId(), next.getFactionId()));
     }
+    // Reconcile with stored wars.  Any wars not contained in the update are scheduled for EOL.
+    reconcile(time, FactionWar.class, wars,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  FactionWar.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR)),
+              x -> ESIRefReconciler.pack(x.getAgainstID(), x.getFactionID()),
+              x -> Pair.of(x.getAgainstID(), x.getFactionID()), updates);
   }
 
 }
@@ -20,6 +20,12 @@ public class ESIServerStatusSync extends AbstractESIRefSync<GetStatusOk> {
     return ESIRefSyncEndpoint.REF_SERVER_STATUS;
   }
 
+  @Override
+  protected ESIRefThrottle.Priority throttlePriority() {
+    // Server status is polled frequently and goes stale quickly
+    return ESIRefThrottle.Priority.HIGH;
+  }
+
   @Override
   protected void commit(long time,
                         RefCachedData item) throws IOException {
@@ -32,8 +38,7 @@ public class ESIServerStatusSync extends AbstractESIRefSync<GetStatusOk> {
   @Override
   protected ESIRefServerResult<GetStatusOk> getServerData(ESIRefClientProvider cp) throws ApiException, IOException {
     StatusApi apiInstance = cp.getStatusApi();
-    ESIRefThrottle.throttle(endpoint().name());
-    ApiResponse<GetStatusOk> result = apiInstance.getStatusWithHttpInfo(null, null);
+    ApiResponse<GetStatusOk> result = callESI(() -> apiInstance.getStatusWithHttpInfo(null, null));
     checkCommonProblems(result);
     return new ESIRefServerResult<>(extractExpiry(result, OrbitalProperties.getCurrentTime() + maxDelay()), result.getData());
   }
@@ -9,6 +9,7 @@ import enterprises.orbital.eve.esi.client.model.GetSovereigntyCampaignsParticipa
 import enterprises.orbital.evekit.model.*;
 import enterprises.orbital.evekit.model.sov.SovereigntyCampaign;
 import enterprises.orbital.evekit.model.sov.SovereigntyCampaignParticipant;
+import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.IOException;
 import java.util.*;
@@ -22,6 +23,12 @@ public class ESISovereigntyCampaignSync extends AbstractESIRefSync<List<GetSover
     return ESIRefSyncEndpoint.REF_SOV_CAMPAIGN;
   }
 
+  @Override
+  protected ESIRefThrottle.Priority throttlePriority() {
+    // Campaign scores change quickly
+    return ESIRefThrottle.Priority.HIGH;
+  }
+
   @Override
   protected void commit(long time,
                         RefCachedData item) throws IOException {
@@ -31,10 +38,13 @@ public class ESISovereigntyCampaignSync extends AbstractESIRefSync<List<GetSover
       // Only need to check for existing item if current item is an update
       if (item instanceof SovereigntyCampaign) {
         SovereigntyCampaign api = (SovereigntyCampaign) item;
-        existing = SovereigntyCampaign.get(time, api.getCampaignID());
+        existing = findLive(SovereigntyCampaign.class, api.getCampaignID(),
+                            () -> SovereigntyCampaign.get(time, api.getCampaignID()));
       } else {
         SovereigntyCampaignParticipant api = (SovereigntyCampaignParticipant) item;
-        existing = SovereigntyCampaignParticipant.get(time, api.getCampaignID(), api.getAllianceID());
+        existing = findLive(SovereigntyCampaignParticipant.class, Pair.of(api.getCampaignID(), api.getAllianceID()),
+                            () -> SovereigntyCampaignParticipant.get(time, api.getCampaignID(),
+                                                                     api.getAllianceID()));
       }
     }
     evolveOrAdd(time, existing, item);
@@ -44,8 +54,8 @@ public class ESISovereigntyCampaignSync extends AbstractESIRefSync<List<GetSover
   protected ESIRefServerResult<List<GetSovereigntyCampaigns200Ok>> getServerData(
       ESIRefClientProvider cp) throws ApiException, IOException {
     SovereigntyApi apiInstance = cp.getSovereigntyApi();
-    ESIRefThrottle.throttle(endpoint().name());
-    ApiResponse<List<GetSovereigntyCampaigns200Ok>> result = apiInstance.getSovereigntyCampaignsWithHttpInfo(null, null);
+    ApiResponse<List<GetSovereigntyCampaigns200Ok>> result = callESI(
+        () -> apiInstance.getSovereigntyCampaignsWithHttpInfo(null, null));
     checkCommonProblems(result);
     return new ESIRefServerResult<>(extractExpiry(result, OrbitalProperties.getCurrentTime() + maxDelay()), result.getData());
   }
@@ -55,44 +65,32 @@ public class ESISovereigntyCampaignSync extends AbstractESIRefSync<List<GetSover
                                    List<RefCachedData> updates) throws IOException {
     List<GetSovereigntyCampaigns200Ok> serverData = data.getData();
     // Create updates for all campaigns and participants
-    Set<Integer> seenCampaigns = new HashSet<>();
-    Map<Integer, Set<Integer>> seenParts = new HashMap<>();
+    List<SovereigntyCampaign> campaigns = new ArrayList<>();
+    List<SovereigntyCampaignParticipant> participants = new ArrayList<>();
     for (GetSovereigntyCampaigns200Ok next : serverData) {
-      updates.add(new SovereigntyCampaign(next.getCampaignId(), next.getStructureId(), next.getSolarSystemId(),
-                                          next.getConstellationId(), next.getEventType()
-                                                                         .toString(), next.getStartTime()
-                                                                                          .getMillis(),
-                                          nullSafeInteger(next.getDefenderId(), 0), nullSafeFloat(next.getDefenderScore(), 0F),
-                                          nullSafeFloat(next.getAttackersScore(), 0F)));
-      seenCampaigns.add(next.getCampaignId());
-      List<GetSovereigntyCampaignsParticipant> parts = next.getParticipants();
-      if (!parts.isEmpty()) {
-        Set<Integer> seenAlliances = new HashSet<>();
-        seenParts.put(next.getCampaignId(), seenAlliances);
-        for (GetSovereigntyCampaignsParticipant nextPart : parts) {
-          updates.add(new SovereigntyCampaignParticipant(next.getCampaignId(), nextPart.getAllianceId(), nextPart.getScore()));
-          seenAlliances.add(nextPart.getAllianceId());
-        }
-      }
-    }
-    // Look for any campaigns or participants not contained in the update and schedule for EOL
-    List<SovereigntyCampaign> stored = retrieveAll(time, (long contid, AttributeSelector at) ->
-        SovereigntyCampaign.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR));
-    for (SovereigntyCampaign next : stored) {
-      if (!seenCampaigns.contains(next.getCampaignID())) {
-        next.evolve(null, time);
-        updates.add(next);
-      }
-    }
-    List<SovereigntyCampaignParticipant> storedParts = retrieveAll(time, (long contid, AttributeSelector at) ->
-        SovereigntyCampaignParticipant.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR));
-    for (SovereigntyCampaignParticipant next : storedParts) {
-      if (!seenParts.containsKey(next.getCampaignID()) || !seenParts.get(next.getCampaignID())
-                                                                    .contains(next.getAllianceID())) {
-        next.evolve(null, time);
-        updates.add(next);
+      campaigns.add(new SovereigntyCampaign(next.getCampaignId(), next.getStructureId(), next.getSolarSystemId(),
+                                            next.getConstellationId(), next.getEventType()
+                                                                           .toString(), next.getStartTime()
+                                                                                            .getMillis(),
+                                            nullSafeInteger(next.getDefenderId(), 0), nullSafeFloat(next.getDefenderScore(), 0F),
+                                            nullSafeFloat(next.getAttackersScore(), 0F)));
+      for (GetSovereigntyCampaignsParticipant nextPart : next.getParticipants()) {
+        participants.add(new SovereigntyCampaignParticipant(next.getCampaignId(), nextPart.getAllianceId(), nextPart.getScore()));
       }
     }
+    // Reconcile with stored campaigns and participants.  Any not contained in the update are scheduled for EOL.
+    reconcile(time, SovereigntyCampaign.class, campaigns,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  SovereigntyCampaign.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR,
+                                                  ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR,
+                                                  ANY_SELECTOR)),
+              SovereigntyCampaign::getCampaignID, SovereigntyCampaign::getCampaignID, updates);
+    reconcile(time, SovereigntyCampaignParticipant.class, participants,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  SovereigntyCampaignParticipant.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR,
+                                                             ANY_SELECTOR)),
+              x -> ESIRefReconciler.pack(x.getCampaignID(), x.getAllianceID()),
+              x -> Pair.of(x.getCampaignID(), x.getAllianceID()), updates);
   }
 
 }
@@ -9,9 +9,8 @@ import enterprises.orbital.evekit.model.*;
 import enterprises.orbital.evekit.model.sov.SovereigntyMap;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Logger;
 
 public class ESISovereigntyMapSync extends AbstractESIRefSync<List<GetSovereigntyMap200Ok>> {
@@ -28,16 +27,22 @@ public class ESISovereigntyMapSync extends AbstractESIRefSync<List<GetSovereignt
     assert item instanceof SovereigntyMap;
     SovereigntyMap api = (SovereigntyMap) item;
     // Lookup only necessary if item is an update
-    SovereigntyMap existing = api.getLifeStart() == 0 ? SovereigntyMap.get(time,api.getSystemID()) : null;
+    SovereigntyMap existing = api.getLifeStart() == 0 ? findLive(SovereigntyMap.class, api.getSystemID(),
+                                                                () -> SovereigntyMap.get(time, api.getSystemID())) : null;
     evolveOrAdd(time, existing, api);
   }
 
+  @Override
+  protected Object partitionKey(RefCachedData item) {
+    return ((SovereigntyMap) item).getSystemID();
+  }
+
   @Override
   protected ESIRefServerResult<List<GetSovereigntyMap200Ok>> getServerData(
       ESIRefClientProvider cp) throws ApiException, IOException {
     SovereigntyApi apiInstance = cp.getSovereigntyApi();
-    ESIRefThrottle.throttle(endpoint().name());
-    ApiResponse<List<GetSovereigntyMap200Ok>> result = apiInstance.getSovereigntyMapWithHttpInfo(null, null);
+    ApiResponse<List<GetSovereigntyMap200Ok>> result = callESI(
+        () -> apiInstance.getSovereigntyMapWithHttpInfo(null, null));
     checkCommonProblems(result);
     return new ESIRefServerResult<>(extractExpiry(result, OrbitalProperties.getCurrentTime() + maxDelay()), result.getData());
   }
@@ -47,23 +52,19 @@ public class ESISovereigntyMapSync extends AbstractESIRefSync<List<GetSovereignt
                                    List<RefCachedData> updates) throws IOException {
     List<GetSovereigntyMap200Ok> serverData = data.getData();
     // Create updates for all map entries
-    Set<Integer> seenSystems = new HashSet<>();
+    List<SovereigntyMap> systems = new ArrayList<>();
     for (GetSovereigntyMap200Ok next : serverData) {
-      updates.add(new SovereigntyMap(nullSafeInteger(next.getAllianceId(), 0),
+      systems.add(new SovereigntyMap(nullSafeInteger(next.getAllianceId(), 0),
                                      nullSafeInteger(next.getCorporationId(), 0),
                                      nullSafeInteger(next.getFactionId(), 0),
                                      next.getSystemId()));
-      seenSystems.add(next.getSystemId());
-    }
-    // Look for any systems not contained in the update and schedule for EOL
-    List<SovereigntyMap> stored = retrieveAll(time, (long contid, AttributeSelector at) ->
-        SovereigntyMap.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR));
-    for (SovereigntyMap next : stored) {
-      if (!seenSystems.contains(next.getSystemID())) {
-        next.evolve(null, time);
-        updates.add(next);
-      }
     }
+    // Reconcile with stored systems.  Any systems not contained in the update are scheduled for EOL.
+    reconcile(time, SovereigntyMap.class, systems,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  SovereigntyMap.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR,
+                                             ANY_SELECTOR)),
+              SovereigntyMap::getSystemID, SovereigntyMap::getSystemID, updates);
   }
 
 }
@@ -10,10 +10,9 @@ import enterprises.orbital.evekit.model.sov.SovereigntyStructure;
 import org.joda.time.DateTime;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Logger;
 
 public class ESISovereigntyStructureSync extends AbstractESIRefSync<List<GetSovereigntyStructures200Ok>> {
@@ -30,18 +29,24 @@ public class ESISovereigntyStructureSync extends AbstractESIRefSync<List<GetSove
     assert item instanceof SovereigntyStructure;
     SovereigntyStructure api = (SovereigntyStructure) item;
     // Lookup only necessary if item is an update
-    SovereigntyStructure existing = api.getLifeStart() == 0 ? SovereigntyStructure.get(time,
-                                                                                       api.getStructureID()) : null;
+    SovereigntyStructure existing = api.getLifeStart() == 0 ? findLive(SovereigntyStructure.class,
+                                                                       api.getStructureID(),
+                                                                       () -> SovereigntyStructure.get(time,
+                                                                                                      api.getStructureID())) : null;
     evolveOrAdd(time, existing, api);
   }
 
+  @Override
+  protected Object partitionKey(RefCachedData item) {
+    return ((SovereigntyStructure) item).getStructureID();
+  }
+
   @Override
   protected ESIRefServerResult<List<GetSovereigntyStructures200Ok>> getServerData(
       ESIRefClientProvider cp) throws ApiException, IOException {
     SovereigntyApi apiInstance = cp.getSovereigntyApi();
-    ESIRefThrottle.throttle(endpoint().name());
-    ApiResponse<List<GetSovereigntyStructures200Ok>> result = apiInstance.getSovereigntyStructuresWithHttpInfo(null,
-                                                                                                               null);
+    ApiResponse<List<GetSovereigntyStructures200Ok>> result = callESI(
+        () -> apiInstance.getSovereigntyStructuresWithHttpInfo(null, null));
     checkCommonProblems(result);
     return new ESIRefServerResult<>(extractExpiry(result, OrbitalProperties.getCurrentTime() + maxDelay()),
                                     result.getData());
@@ -52,41 +57,25 @@ public class ESISovereigntyStructureSync extends AbstractESIRefSync<List<GetSove
                                    List<RefCachedData> updates) throws IOException {
     List<GetSovereigntyStructures200Ok> serverData = data.getData();
 
-    // Map all current existing structures
-    List<SovereigntyStructure> stored = retrieveAll(time, (long contid, AttributeSelector at) ->
-        SovereigntyStructure.accessQuery(contid, 1000, false, at, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR,
-                                         ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR));
-    Map<Long, SovereigntyStructure> current = new HashMap<>();
-    for (SovereigntyStructure i : stored) {
-      current.put(i.getStructureID(), i);
-    }
-
-    // Inspect structure updates.  If a structure is new or different from the current version, then schedule for update.
+    // Create updates for all structures reported by the server
+    List<SovereigntyStructure> structures = new ArrayList<>();
     for (GetSovereigntyStructures200Ok next : serverData) {
-      SovereigntyStructure nextStructure = new SovereigntyStructure(next.getAllianceId(), next.getSolarSystemId(),
-                                                                    next.getStructureId(), next.getStructureTypeId(),
-                                                                    nullSafeFloat(next.getVulnerabilityOccupancyLevel(),
-                                                                                  0F),
-                                                                    nullSafeDateTime(next.getVulnerableStartTime(),
-                                                                                     new DateTime(
-                                                                                         new Date(0))).getMillis(),
-                                                                    nullSafeDateTime(next.getVulnerableEndTime(),
-                                                                                     new DateTime(
-                                                                                         new Date(0))).getMillis());
-      SovereigntyStructure existing = current.get(next.getStructureId());
-      if (existing == null || !existing.equivalent(nextStructure)) {
-        updates.add(nextStructure);
-      }
-      if (existing != null) {
-        current.remove(next.getStructureId());
-      }
+      structures.add(new SovereigntyStructure(next.getAllianceId(), next.getSolarSystemId(),
+                                              next.getStructureId(), next.getStructureTypeId(),
+                                              nullSafeFloat(next.getVulnerabilityOccupancyLevel(), 0F),
+                                              nullSafeDateTime(next.getVulnerableStartTime(),
+                                                               new DateTime(new Date(0))).getMillis(),
+                                              nullSafeDateTime(next.getVulnerableEndTime(),
+                                                               new DateTime(new Date(0))).getMillis()));
     }
 
-    // Anything left in the current map should be end of lifed
-    for (SovereigntyStructure next : current.values()) {
-      next.evolve(null, time);
-      updates.add(next);
-    }
+    // Reconcile with stored structures.  Any structures not contained in the update are scheduled for EOL.
+    reconcile(time, SovereigntyStructure.class, structures,
+              iterateLive(time, (long contid, int max, boolean reverse, AttributeSelector at) ->
+                  SovereigntyStructure.accessQuery(contid, max, reverse, at, ANY_SELECTOR, ANY_SELECTOR,
+                                                   ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR, ANY_SELECTOR,
+                                                   ANY_SELECTOR)),
+              SovereigntyStructure::getStructureID, SovereigntyStructure::getStructureID, updates);
   }
 
 }
@@ -12,9 +12,17 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static enterprises.orbital.evekit.model.AbstractESIRefSync.ANY_SELECTOR;
 
@@ -27,6 +35,13 @@ public class AbstractESIRefSyncTest extends RefTestBase {
   private final int SIM_API_ERROR = 1 << 2;
   private final int SIM_COMMIT_ERROR = 1 << 3;
   private final int SIM_PROCESS_ERROR = 1 << 4;
+  private final int SIM_PIPELINE = 1 << 5;
+  private final int SIM_UPDATES = 1 << 6;
+  private final int SIM_PARALLEL = 1 << 7;
+  private final int SIM_PAYLOAD = 1 << 8;
+  private final int SIM_BATCH_WRITES = 1 << 9;
+
+  private final int SIM_UPDATE_COUNT = 1013;
 
   protected long testTime = 1238L;
 
@@ -34,6 +49,8 @@ public class AbstractESIRefSyncTest extends RefTestBase {
   public class ClassUnderTest extends AbstractESIRefSync<Object> {
 
     int simMask;
+    AtomicInteger commitCount = new AtomicInteger(0);
+    int added;
 
     ClassUnderTest(int simMask) {
       this.simMask = simMask;
@@ -55,6 +72,33 @@ public class AbstractESIRefSyncTest extends RefTestBase {
         long time,
         RefCachedData item) throws IOException {
       if ((simMask & SIM_COMMIT_ERROR) > 0) throw new IOException();
+      if ((simMask & SIM_BATCH_WRITES) > 0) evolveOrAdd(time, ServerStatus.get(time), item);
+      commitCount.incrementAndGet();
+    }
+
+    @Override
+    protected boolean pipelineCommits() {
+      return (simMask & SIM_PIPELINE) > 0;
+    }
+
+    @Override
+    protected int commitParallelism() {
+      return (simMask & SIM_PARALLEL) > 0 ? 4 : 1;
+    }
+
+    @Override
+    protected Object partitionKey(RefCachedData item) {
+      return System.identityHashCode(item);
+    }
+
+    @Override
+    protected boolean fingerprintPayloads() {
+      return (simMask & SIM_PAYLOAD) > 0;
+    }
+
+    @Override
+    protected boolean batchWrites() {
+      return (simMask & SIM_BATCH_WRITES) > 0;
     }
 
     @Override
@@ -62,7 +106,7 @@ public class AbstractESIRefSyncTest extends RefTestBase {
       if ((simMask & SIM_API_ERROR) > 0)
         throw new ApiException();
       else
-        return new ESIRefServerResult<>(1238L, null);
+        return new ESIRefServerResult<>(1238L, (simMask & SIM_PAYLOAD) > 0 ? "payload" : null);
     }
 
     @Override
@@ -73,6 +117,16 @@ public class AbstractESIRefSyncTest extends RefTestBase {
         // We can't trigger the commit error unless we have at least one thing to commit
         updates.add(new ServerStatus(10, 1234L, "112233", false));
       }
+      if ((simMask & SIM_BATCH_WRITES) > 0) {
+        updates.add(new ServerStatus(12341, 8888L, "112233", false));
+      }
+      if ((simMask & SIM_UPDATES) > 0) {
+        for (int i = 0; i < SIM_UPDATE_COUNT; i++) {
+          updates.add(new ServerStatus(i, 1234L, "112233", false));
+        }
+        // Updates are write only, but must be counted whether or not commits are pipelined
+        added = updates.size();
+      }
     }
 
     @Override
@@ -253,6 +307,186 @@ public class AbstractESIRefSyncTest extends RefTestBase {
     checkForScheduledTracker(1240L);
   }
 
+  @SuppressWarnings("Duplicates")
+  @Test
+  public void testPipelinedCommitIOExceptionHandled() throws Exception {
+    // Perform the sync
+    ESIRefClientProvider mockServer = EasyMock.createMock(ESIRefClientProvider.class);
+    EasyMock.replay(mockServer);
+    ClassUnderTest cut = new ClassUnderTest(SIM_COMMIT_ERROR | SIM_PIPELINE);
+    OrbitalProperties.setTimeGenerator(() -> testTime);
+    cut.synch(mockServer);
+
+    // Verify tracker is properly terminated
+    checkIOExceptionHandled();
+
+    // Verify a new tracker has been created and scheduled for the default time
+    checkForScheduledTracker(1240L);
+  }
+
+  @Test
+  public void testPipelinedCommit() throws Exception {
+    // Perform the sync
+    ESIRefClientProvider mockServer = EasyMock.createMock(ESIRefClientProvider.class);
+    EasyMock.replay(mockServer);
+    ClassUnderTest cut = new ClassUnderTest(SIM_UPDATES | SIM_PIPELINE);
+    OrbitalProperties.setTimeGenerator(() -> testTime);
+    cut.synch(mockServer);
+
+    // Verify all updates were committed, and were counted during processing
+    Assert.assertEquals(SIM_UPDATE_COUNT, cut.commitCount.get());
+    Assert.assertEquals(SIM_UPDATE_COUNT, cut.added);
+
+    // Verify tracker finished normally
+    ESIRefEndpointSyncTracker syncTracker = ESIRefEndpointSyncTracker.getLatestFinishedTracker(ESIRefSyncEndpoint.REF_SERVER_STATUS);
+    Assert.assertEquals(testTime, syncTracker.getSyncStart());
+    Assert.assertEquals(ESISyncState.FINISHED, syncTracker.getStatus());
+    Assert.assertEquals("Updated successfully", syncTracker.getDetail());
+  }
+
+  @Test
+  public void testParallelCommit() throws Exception {
+    // Perform the sync both with and without pipelining
+    for (int mask : new int[]{SIM_UPDATES | SIM_PARALLEL, SIM_UPDATES | SIM_PARALLEL | SIM_PIPELINE}) {
+      ESIRefClientProvider mockServer = EasyMock.createMock(ESIRefClientProvider.class);
+      EasyMock.replay(mockServer);
+      ClassUnderTest cut = new ClassUnderTest(mask);
+      OrbitalProperties.setTimeGenerator(() -> testTime);
+      cut.synch(mockServer);
+
+      // Verify all updates were committed
+      Assert.assertEquals(SIM_UPDATE_COUNT, cut.commitCount.get());
+
+      // Verify tracker finished normally
+      ESIRefEndpointSyncTracker syncTracker = ESIRefEndpointSyncTracker.getLatestFinishedTracker(
+          ESIRefSyncEndpoint.REF_SERVER_STATUS);
+      Assert.assertEquals(ESISyncState.FINISHED, syncTracker.getStatus());
+    }
+  }
+
+  @Test
+  public void testUnchangedPayloadSkipped() throws Exception {
+    ESIRefClientProvider mockServer = EasyMock.createMock(ESIRefClientProvider.class);
+    EasyMock.replay(mockServer);
+    OrbitalProperties.setTimeGenerator(() -> testTime);
+    long skipped = AbstractESIRefSync.getSkippedSyncCount(ESIRefSyncEndpoint.REF_SERVER_STATUS);
+
+    // First sync should process and store the fingerprint with the next tracker
+    ClassUnderTest cut = new ClassUnderTest(SIM_UPDATES | SIM_PAYLOAD);
+    cut.synch(mockServer);
+    Assert.assertEquals(SIM_UPDATE_COUNT, cut.commitCount.get());
+    String fingerprint = cut.computeFingerprint("payload");
+    Assert.assertNotNull(fingerprint);
+    Assert.assertEquals(fingerprint,
+                        ESIRefEndpointSyncTracker.getUnfinishedTracker(ESIRefSyncEndpoint.REF_SERVER_STATUS)
+                                                 .getContext());
+
+    // Second sync with the same payload should be skipped
+    cut = new ClassUnderTest(SIM_UPDATES | SIM_PAYLOAD);
+    cut.synch(mockServer);
+    Assert.assertEquals(0, cut.commitCount.get());
+    ESIRefEndpointSyncTracker syncTracker = ESIRefEndpointSyncTracker.getLatestFinishedTracker(
+        ESIRefSyncEndpoint.REF_SERVER_STATUS);
+    Assert.assertEquals(ESISyncState.FINISHED, syncTracker.getStatus());
+    Assert.assertEquals(skipped + 1, AbstractESIRefSync.getSkippedSyncCount(ESIRefSyncEndpoint.REF_SERVER_STATUS));
+
+    // Fingerprint should be carried forward to the next tracker
+    Assert.assertEquals(fingerprint,
+                        ESIRefEndpointSyncTracker.getUnfinishedTracker(ESIRefSyncEndpoint.REF_SERVER_STATUS)
+                                                 .getContext());
+  }
+
+  @Test
+  public void testBatchWrites() throws Exception {
+    ESIRefClientProvider mockServer = EasyMock.createMock(ESIRefClientProvider.class);
+    EasyMock.replay(mockServer);
+    OrbitalProperties.setTimeGenerator(() -> testTime);
+
+    // Populate existing
+    ServerStatus existing = new ServerStatus(8321, 8888L, "1.2.3", false);
+    existing.setup(testTime - 1);
+    RefCachedData.update(existing);
+
+    // Perform the sync with batched writes
+    ClassUnderTest cut = new ClassUnderTest(SIM_BATCH_WRITES);
+    cut.synch(mockServer);
+    Assert.assertEquals(1, cut.commitCount.get());
+
+    // Verify old object was evolved properly
+    ServerStatus result = ServerStatus.get(testTime - 1);
+    Assert.assertEquals(testTime - 1, result.getLifeStart());
+    Assert.assertEquals(testTime, result.getLifeEnd());
+    Assert.assertEquals(8321, result.getOnlinePlayers());
+
+    // Verify updated properly
+    result = ServerStatus.get(testTime);
+    Assert.assertEquals(testTime, result.getLifeStart());
+    Assert.assertEquals(Long.MAX_VALUE, result.getLifeEnd());
+    Assert.assertEquals(12341, result.getOnlinePlayers());
+
+    // Verify tracker was updated properly
+    ESIRefEndpointSyncTracker syncTracker = ESIRefEndpointSyncTracker.getLatestFinishedTracker(
+        ESIRefSyncEndpoint.REF_SERVER_STATUS);
+    Assert.assertEquals(ESISyncState.FINISHED, syncTracker.getStatus());
+    Assert.assertEquals("Updated successfully", syncTracker.getDetail());
+  }
+
+  @Test
+  public void testBatchWriteReplay() throws Exception {
+    // Record new rows of two types
+    long allianceID = TestBase.getUniqueRandomLong();
+    ESIRefBatchWriter writer = new ESIRefBatchWriter();
+    for (int i = 0; i < 2; i++) {
+      AllianceMemberCorporation next = new AllianceMemberCorporation(allianceID, TestBase.getUniqueRandomLong());
+      next.setup(testTime);
+      writer.add(next, true);
+    }
+    ServerStatus status = new ServerStatus(12341, 8888L, "112233", false);
+    status.setup(testTime);
+    writer.add(status, true);
+
+    // Fail the flush of the second type, after rows of the first type have been persisted and assigned ids
+    AtomicInteger flushes = new AtomicInteger(0);
+    try {
+      EveKitRefDataProvider.getFactory()
+                           .runTransaction(() -> {
+                             EntityManager em = EveKitRefDataProvider.getFactory()
+                                                                     .getEntityManager();
+                             writer.flush((EntityManager) Proxy.newProxyInstance(
+                                 EntityManager.class.getClassLoader(), new Class<?>[]{EntityManager.class},
+                                 (proxy, method, args) -> {
+                                   if (method.getName()
+                                             .equals("flush") && flushes.incrementAndGet() == 2)
+                                     throw new PersistenceException("simulated flush failure");
+                                   try {
+                                     return method.invoke(em, args);
+                                   } catch (InvocationTargetException e) {
+                                     throw e.getCause();
+                                   }
+                                 }));
+                           });
+      Assert.fail("Flush should have failed");
+    } catch (Exception e) {
+      // expected
+    }
+    Assert.assertEquals(2, flushes.get());
+    Assert.assertTrue(writer.flushFailed());
+
+    // Replay should store each new row exactly once
+    EveKitRefDataProvider.getFactory()
+                         .runTransaction(writer::replay);
+    AttributeSelector byAllianceID = new AttributeSelector("{ values: [" + allianceID + "]}");
+    List<AllianceMemberCorporation> stored = AbstractESIRefSync.retrieveAll(testTime,
+                                                                            (long contid, AttributeSelector at) ->
+                                                                                AllianceMemberCorporation.accessQuery(
+                                                                                    contid, 100, false, at,
+                                                                                    byAllianceID, ANY_SELECTOR));
+    Assert.assertEquals(2, stored.size());
+    ServerStatus result = ServerStatus.get(testTime);
+    Assert.assertEquals(testTime, result.getLifeStart());
+    Assert.assertEquals(12341, result.getOnlinePlayers());
+  }
+
   @Test
   public void testRetrieveAll() throws Exception {
     // Create at least 1000 AllianceMemberCorporations live at a given time
@@ -271,4 +505,67 @@ public class AbstractESIRefSyncTest extends RefTestBase {
                                                                                 AllianceMemberCorporation.accessQuery(contid, 100, false, at, ANY_SELECTOR, ANY_SELECTOR));
     Assert.assertEquals(testObjs, stored);
   }
+
+  @Test
+  public void testRetrieveAllParallel() throws Exception {
+    // Create at least 1000 AllianceMemberCorporations live at a given time
+    int objCount = 1010 + TestBase.getRandomInt(1000);
+    long allianceID = TestBase.getUniqueRandomLong();
+    List<AllianceMemberCorporation> testObjs = new ArrayList<>();
+    for (int i = 0; i < objCount; i++) {
+      AllianceMemberCorporation next = new AllianceMemberCorporation(allianceID, TestBase.getUniqueRandomLong());
+      next.setup(testTime);
+      testObjs.add(RefCachedData.update(next));
+    }
+
+    // Retrieve with various parallelism.  Results should always be complete and in cid order.
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int parallelism : new int[]{1, 3, 4, 7}) {
+        List<AllianceMemberCorporation> stored = AbstractESIRefSync.retrieveAllParallel(testTime,
+                                                                                        (long contid, int max, boolean reverse, AttributeSelector at) ->
+                                                                                            AllianceMemberCorporation.accessQuery(
+                                                                                                contid, max, reverse,
+                                                                                                at, ANY_SELECTOR,
+                                                                                                ANY_SELECTOR),
+                                                                                        100, parallelism, executor);
+        Assert.assertEquals(testObjs, stored);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testIterateAll() throws Exception {
+    // Create several pages of AllianceMemberCorporations live at a given time
+    int objCount = 250 + TestBase.getRandomInt(100);
+    long allianceID = TestBase.getUniqueRandomLong();
+    List<AllianceMemberCorporation> testObjs = new ArrayList<>();
+    for (int i = 0; i < objCount; i++) {
+      AllianceMemberCorporation next = new AllianceMemberCorporation(allianceID, TestBase.getUniqueRandomLong());
+      next.setup(testTime);
+      testObjs.add(RefCachedData.update(next));
+    }
+
+    // Pages should only be retrieved as the iterator is consumed
+    AtomicInteger queryCount = new AtomicInteger(0);
+    Iterator<AllianceMemberCorporation> it = AbstractESIRefSync.iterateAll(testTime,
+                                                                            (long contid, AttributeSelector at) -> {
+                                                                              queryCount.incrementAndGet();
+                                                                              return AllianceMemberCorporation.accessQuery(
+                                                                                  contid, 100, false, at, ANY_SELECTOR,
+                                                                                  ANY_SELECTOR);
+                                                                            })
+                                                               .iterator();
+    Assert.assertEquals(0, queryCount.get());
+    List<AllianceMemberCorporation> stored = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      stored.add(it.next());
+    }
+    Assert.assertEquals(1, queryCount.get());
+    it.forEachRemaining(stored::add);
+    Assert.assertEquals(testObjs, stored);
+    Assert.assertEquals((objCount + 99) / 100 + 1, queryCount.get());
+  }
 }
@@ -0,0 +1,82 @@
+package enterprises.orbital.evekit.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ESIRefCommitBatchControllerTest {
+
+  @Test
+  public void testInitialSize() {
+    ESIRefCommitBatchController controller = new ESIRefCommitBatchController();
+
+    // Before any batches are recorded the initial size is used, within limits
+    Assert.assertEquals(100, controller.nextBatchSize(100, 10, 1000));
+    Assert.assertEquals(10, controller.nextBatchSize(5, 10, 1000));
+    Assert.assertEquals(1000, controller.nextBatchSize(5000, 10, 1000));
+
+    // Empty batches are ignored
+    controller.record(0, 1000L, 1000L, 10, 1000);
+    Assert.assertEquals(100, controller.nextBatchSize(100, 10, 1000));
+  }
+
+  @Test
+  public void testLatencySmoothing() {
+    ESIRefCommitBatchController controller = new ESIRefCommitBatchController();
+
+    // 10ms per update meets a 1s target with the same batch size
+    controller.record(100, 1000L, 1000L, 1, 10000);
+    Assert.assertEquals(100, controller.nextBatchSize(500, 1, 10000));
+
+    // A single slow batch (20ms per update) only moves the estimate part of the way, to 13ms per update.
+    // Batches shrink immediately.
+    controller.record(100, 2000L, 1000L, 1, 10000);
+    Assert.assertEquals(76, controller.nextBatchSize(500, 1, 10000));
+
+    // Repeated batches at 10ms per update bring the estimate back down
+    for (int i = 0; i < 20; i++) {
+      int size = controller.nextBatchSize(500, 1, 10000);
+      controller.record(size, size * 10L, 1000L, 1, 10000);
+    }
+    int size = controller.nextBatchSize(500, 1, 10000);
+    Assert.assertTrue(size >= 98 && size <= 100);
+  }
+
+  @Test
+  public void testGrowthCap() {
+    ESIRefCommitBatchController controller = new ESIRefCommitBatchController();
+
+    // At 1ms per update the target size is 1000, but batches only double each time
+    controller.record(100, 100L, 1000L, 1, 10000);
+    Assert.assertEquals(200, controller.nextBatchSize(100, 1, 10000));
+    controller.record(200, 200L, 1000L, 1, 10000);
+    Assert.assertEquals(400, controller.nextBatchSize(100, 1, 10000));
+    controller.record(400, 400L, 1000L, 1, 10000);
+    Assert.assertEquals(800, controller.nextBatchSize(100, 1, 10000));
+    controller.record(800, 800L, 1000L, 1, 10000);
+    Assert.assertEquals(1000, controller.nextBatchSize(100, 1, 10000));
+  }
+
+  @Test
+  public void testClamp() {
+    // Very fast commits are limited by the maximum size
+    ESIRefCommitBatchController controller = new ESIRefCommitBatchController();
+    controller.record(100, 1L, 1000L, 1, 150);
+    Assert.assertEquals(150, controller.nextBatchSize(100, 1, 150));
+
+    // Commits faster than the clock resolution do not divide by zero
+    controller = new ESIRefCommitBatchController();
+    controller.record(100, 0L, 1000L, 1, 10000);
+    Assert.assertEquals(200, controller.nextBatchSize(100, 1, 10000));
+
+    // Very slow commits are limited by the minimum size
+    controller = new ESIRefCommitBatchController();
+    controller.record(100, 100000L, 1000L, 50, 1000);
+    Assert.assertEquals(50, controller.nextBatchSize(100, 50, 1000));
+
+    // A maximum below the minimum, or a minimum below one, are corrected
+    Assert.assertEquals(50, controller.nextBatchSize(100, 50, 10));
+    controller = new ESIRefCommitBatchController();
+    Assert.assertEquals(1, controller.nextBatchSize(0, 0, 10));
+  }
+
+}
@@ -0,0 +1,153 @@
+package enterprises.orbital.evekit.model;
+
+import enterprises.orbital.evekit.TestBase;
+import enterprises.orbital.evekit.account.EveKitRefDataProvider;
+import enterprises.orbital.evekit.model.alliance.AllianceMemberCorporation;
+import enterprises.orbital.evekit.model.server.ServerStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static enterprises.orbital.evekit.model.AbstractESIRefSync.ANY_SELECTOR;
+
+public class ESIRefCommitJournalTest extends RefTestBase {
+
+  private static final ESIRefSyncEndpoint ENDPOINT = ESIRefSyncEndpoint.REF_SERVER_STATUS;
+
+  private long testTime = 1238L;
+  private Path dir;
+
+  @Override
+  @Before
+  public void setup() throws Exception {
+    super.setup();
+    dir = Files.createTempDirectory("ref-journal");
+  }
+
+  @Override
+  @After
+  public void teardown() throws Exception {
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path next : files.collect(Collectors.toList())) {
+        Files.delete(next);
+      }
+    }
+    Files.delete(dir);
+    EveKitRefDataProvider.getFactory()
+                         .runTransaction(() -> {
+                           EveKitRefDataProvider.getFactory()
+                                                .getEntityManager()
+                                                .createQuery("DELETE FROM AllianceMemberCorporation ")
+                                                .executeUpdate();
+                         });
+    super.teardown();
+  }
+
+  // A stored member corporation scheduled for EOL, a new member corporation, and a new server status
+  private List<RefCachedData> makeUpdates() throws IOException {
+    List<RefCachedData> updates = new ArrayList<>();
+    AllianceMemberCorporation existing = new AllianceMemberCorporation(TestBase.getUniqueRandomLong(),
+                                                                       TestBase.getUniqueRandomLong());
+    existing.setup(testTime - 1);
+    existing = RefCachedData.update(existing);
+    existing.evolve(null, testTime);
+    updates.add(existing);
+    AllianceMemberCorporation member = new AllianceMemberCorporation(TestBase.getUniqueRandomLong(),
+                                                                     TestBase.getUniqueRandomLong());
+    member.setup(testTime);
+    updates.add(member);
+    ServerStatus status = new ServerStatus(12341, 8888L, "112233", true);
+    status.setup(testTime);
+    updates.add(status);
+    return updates;
+  }
+
+  private static List<AllianceMemberCorporation> liveMembers(long time, long allianceID) throws IOException {
+    AttributeSelector byAllianceID = new AttributeSelector("{ values: [" + allianceID + "]}");
+    return AbstractESIRefSync.retrieveAll(time, (long contid, AttributeSelector at) ->
+        AllianceMemberCorporation.accessQuery(contid, 100, false, at, byAllianceID, ANY_SELECTOR));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    List<RefCachedData> updates = makeUpdates();
+    ESIRefCommitJournal.append(dir, ENDPOINT, testTime, updates);
+
+    // Segment is renamed into place, leaving no temporary file
+    Assert.assertEquals(1, ESIRefCommitJournal.pending(dir, ENDPOINT)
+                                              .size());
+    try (Stream<Path> files = Files.list(dir)) {
+      Assert.assertEquals(1, files.count());
+    }
+
+    // Applying the segment restores every update, including ids and lifelines, then deletes the segment
+    List<RefCachedData> applied = new ArrayList<>();
+    long[] appliedTime = new long[1];
+    Assert.assertEquals(1, ESIRefCommitJournal.applyPending(dir, ENDPOINT, (syncTime, next) -> {
+      appliedTime[0] = syncTime;
+      applied.addAll(next);
+    }));
+    Assert.assertEquals(testTime, appliedTime[0]);
+    Assert.assertEquals(updates.size(), applied.size());
+    for (int i = 0; i < updates.size(); i++) {
+      RefCachedData expected = updates.get(i);
+      RefCachedData actual = applied.get(i);
+      Assert.assertNotSame(expected, actual);
+      Assert.assertEquals(expected.getClass(), actual.getClass());
+      Assert.assertEquals(expected.getCid(), actual.getCid());
+      Assert.assertEquals(expected.getLifeStart(), actual.getLifeStart());
+      Assert.assertEquals(expected.getLifeEnd(), actual.getLifeEnd());
+      Assert.assertTrue(expected.equivalent(actual));
+    }
+    ServerStatus status = (ServerStatus) applied.get(2);
+    Assert.assertEquals(12341, status.getOnlinePlayers());
+    Assert.assertEquals(8888L, status.getStartTime());
+    Assert.assertEquals("112233", status.getServerVersion());
+    Assert.assertTrue(status.isVip());
+    Assert.assertTrue(ESIRefCommitJournal.pending(dir, ENDPOINT)
+                                         .isEmpty());
+  }
+
+  @Test
+  public void testScheduleApplyRetry() throws Exception {
+    List<RefCachedData> updates = makeUpdates();
+    ESIRefCommitJournal.append(dir, ENDPOINT, testTime, updates);
+
+    // The first attempt fails and leaves the segment in place.  The retry commits the updates.
+    AtomicInteger attempts = new AtomicInteger(0);
+    ESIRefCommitJournal.scheduleApply(dir, ENDPOINT, (syncTime, next) -> {
+      if (attempts.incrementAndGet() == 1) throw new IOException("simulated commit failure");
+      for (RefCachedData update : next) {
+        RefCachedData.update(update);
+      }
+    }, 50L);
+    for (int i = 0; i < 100 && !ESIRefCommitJournal.pending(dir, ENDPOINT)
+                                                   .isEmpty(); i++) {
+      Thread.sleep(50);
+    }
+    Assert.assertTrue(ESIRefCommitJournal.pending(dir, ENDPOINT)
+                                         .isEmpty());
+    Assert.assertEquals(2, attempts.get());
+
+    // Verify the stored member corporation was EOL and the new rows were stored
+    AllianceMemberCorporation existing = (AllianceMemberCorporation) updates.get(0);
+    Assert.assertEquals(1, liveMembers(testTime - 1, existing.getAllianceID()).size());
+    Assert.assertTrue(liveMembers(testTime, existing.getAllianceID()).isEmpty());
+    AllianceMemberCorporation member = (AllianceMemberCorporation) updates.get(1);
+    Assert.assertEquals(1, liveMembers(testTime, member.getAllianceID()).size());
+    ServerStatus status = ServerStatus.get(testTime);
+    Assert.assertEquals(testTime, status.getLifeStart());
+    Assert.assertEquals(12341, status.getOnlinePlayers());
+  }
+
+}
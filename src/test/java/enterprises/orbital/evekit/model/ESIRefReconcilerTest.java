@@ -0,0 +1,89 @@
+package enterprises.orbital.evekit.model;
+
+import enterprises.orbital.evekit.model.alliance.AllianceMemberCorporation;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ESIRefReconcilerTest {
+
+  private static class Recorder implements ESIRefReconciler.Listener<AllianceMemberCorporation> {
+    List<AllianceMemberCorporation> added = new ArrayList<>();
+    List<AllianceMemberCorporation> evolved = new ArrayList<>();
+    List<AllianceMemberCorporation> eol = new ArrayList<>();
+
+    @Override
+    public void add(AllianceMemberCorporation incoming) {
+      added.add(incoming);
+    }
+
+    @Override
+    public void evolve(AllianceMemberCorporation stored, AllianceMemberCorporation incoming) {
+      evolved.add(incoming);
+    }
+
+    @Override
+    public void eol(AllianceMemberCorporation stored) {
+      eol.add(stored);
+    }
+  }
+
+  @Test
+  public void testReconcile() throws Exception {
+    // Key by corporation, treat a change of alliance as a change in data
+    ESIRefReconciler<AllianceMemberCorporation> reconciler = new ESIRefReconciler<>(
+        AllianceMemberCorporation::getCorporationID, (a, b) -> a.getAllianceID() == b.getAllianceID());
+
+    AllianceMemberCorporation unchanged = new AllianceMemberCorporation(1L, 10L);
+    AllianceMemberCorporation changedOld = new AllianceMemberCorporation(1L, 11L);
+    AllianceMemberCorporation changedNew = new AllianceMemberCorporation(2L, 11L);
+    AllianceMemberCorporation removed = new AllianceMemberCorporation(1L, 12L);
+    AllianceMemberCorporation added = new AllianceMemberCorporation(1L, 13L);
+
+    Recorder recorder = new Recorder();
+    reconciler.reconcile(Arrays.asList(new AllianceMemberCorporation(1L, 10L), changedNew, added),
+                         Arrays.asList(unchanged, changedOld, removed), recorder);
+
+    Assert.assertEquals(Arrays.asList(added), recorder.added);
+    Assert.assertEquals(Arrays.asList(changedNew), recorder.evolved);
+    Assert.assertEquals(Arrays.asList(removed), recorder.eol);
+  }
+
+  @Test
+  public void testReconcileManyKeys() throws Exception {
+    ESIRefReconciler<AllianceMemberCorporation> reconciler = new ESIRefReconciler<>(
+        AllianceMemberCorporation::getCorporationID);
+
+    // Server reports even keys, storage holds multiples of three
+    List<AllianceMemberCorporation> incoming = new ArrayList<>();
+    List<AllianceMemberCorporation> stored = new ArrayList<>();
+    for (long i = 0; i < 3000; i++) {
+      if (i % 2 == 0) incoming.add(new AllianceMemberCorporation(1L, i));
+      if (i % 3 == 0) stored.add(new AllianceMemberCorporation(1L, i));
+    }
+
+    Recorder recorder = new Recorder();
+    reconciler.reconcile(incoming, stored, recorder);
+
+    for (AllianceMemberCorporation next : recorder.added) {
+      Assert.assertTrue(next.getCorporationID() % 2 == 0 && next.getCorporationID() % 3 != 0);
+    }
+    for (AllianceMemberCorporation next : recorder.eol) {
+      Assert.assertTrue(next.getCorporationID() % 2 != 0 && next.getCorporationID() % 3 == 0);
+    }
+    Assert.assertEquals(1000, recorder.added.size());
+    Assert.assertEquals(500, recorder.eol.size());
+    Assert.assertTrue(recorder.evolved.isEmpty());
+  }
+
+  @Test
+  public void testPack() {
+    Assert.assertTrue(ESIRefReconciler.pack(1, 2) != ESIRefReconciler.pack(2, 1));
+    Assert.assertTrue(ESIRefReconciler.pack(0, -1) != ESIRefReconciler.pack(-1, 0));
+    Assert.assertEquals(0xFFFFFFFFL, ESIRefReconciler.pack(0, -1));
+  }
+
+}
@@ -0,0 +1,99 @@
+package enterprises.orbital.evekit.model;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ESIRefSharedThrottleTest {
+
+  private Path dir;
+
+  @Before
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("ref-throttle");
+  }
+
+  @After
+  public void teardown() throws Exception {
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path next : files.collect(Collectors.toList())) {
+        Files.delete(next);
+      }
+    }
+    Files.delete(dir);
+  }
+
+  @Test
+  public void testRefill() throws Exception {
+    // A new bucket starts full with one second worth of tokens
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(0, ESIRefSharedThrottle.tryAcquire(dir, "testRefill", 10));
+    }
+
+    // Once empty, the caller is told how long until the next token at 10 per second
+    long wait = ESIRefSharedThrottle.tryAcquire(dir, "testRefill", 10);
+    Assert.assertTrue(wait > 0);
+    Assert.assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(100));
+
+    // Tokens are refilled for the time elapsed since the last update
+    Thread.sleep(250);
+    Assert.assertEquals(0, ESIRefSharedThrottle.tryAcquire(dir, "testRefill", 10));
+    Assert.assertEquals(0, ESIRefSharedThrottle.tryAcquire(dir, "testRefill", 10));
+
+    // A long idle period only refills to capacity
+    Thread.sleep(1500);
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(0, ESIRefSharedThrottle.tryAcquire(dir, "testRefill", 10));
+    }
+    Assert.assertTrue(ESIRefSharedThrottle.tryAcquire(dir, "testRefill", 10) > 0);
+  }
+
+  @Test
+  public void testSharedState() throws Exception {
+    // Two threads taking tokens as fast as they are refilled share a single budget
+    double rate = 5;
+    long duration = 1000;
+    AtomicInteger taken = new AtomicInteger(0);
+    List<Thread> threads = new ArrayList<>();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 2; i++) {
+      Thread next = new Thread(() -> {
+        try {
+          while (System.currentTimeMillis() - start < duration) {
+            long wait = ESIRefSharedThrottle.tryAcquire(dir, "testSharedState", rate);
+            if (wait == 0)
+              taken.incrementAndGet();
+            else
+              Thread.sleep(Math.max(TimeUnit.NANOSECONDS.toMillis(wait), 1));
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      next.start();
+      threads.add(next);
+    }
+    for (Thread next : threads) {
+      next.join();
+    }
+    double elapsed = (System.currentTimeMillis() - start) / 1000.0;
+
+    // The initial burst plus the tokens refilled over the run, with one token of slack for timing
+    Assert.assertTrue(taken.get() >= 5);
+    Assert.assertTrue(taken.get() <= 5 + rate * elapsed + 1);
+    try (Stream<Path> files = Files.list(dir)) {
+      Assert.assertEquals(1, files.count());
+    }
+  }
+
+}
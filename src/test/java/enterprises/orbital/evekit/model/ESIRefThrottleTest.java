@@ -0,0 +1,234 @@
+package enterprises.orbital.evekit.model;
+
+import enterprises.orbital.evekit.TestBase;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.Bucket4j;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ESIRefThrottleTest extends RefTestBase {
+
+  // Throttle state is static, so each test uses its own class name
+  private static String uniqueClass(String prefix) {
+    return prefix + "_" + TestBase.getUniqueRandomInteger();
+  }
+
+  @Test
+  public void testThrottleEnforcesRate() throws Exception {
+    String cls = uniqueClass("testThrottleEnforcesRate");
+
+    // A new bucket starts full, so the first second's worth of calls should not wait
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 3; i++) {
+      ESIRefThrottle.throttle(cls);
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start < 250);
+
+    // The next call must wait for a token to be refilled at the default rate of 3 per second
+    long waited = ESIRefThrottle.throttle(cls);
+    Assert.assertTrue(waited >= 200);
+    Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+  }
+
+  @Test
+  public void testBackoffWindow() throws Exception {
+    String cls = uniqueClass("testBackoffWindow");
+
+    // Starting a backoff window does not block the caller
+    long start = System.currentTimeMillis();
+    ESIRefThrottle.backoff(500);
+    Assert.assertTrue(System.currentTimeMillis() - start < 250);
+    Assert.assertTrue(ESIRefThrottle.isBackingOff());
+    Assert.assertTrue(ESIRefThrottle.getBackoffRemaining() > 0);
+
+    // Asynchronous callers are notified when the window ends
+    CompletableFuture<Void> resume = ESIRefThrottle.afterBackoff();
+    Assert.assertFalse(resume.isDone());
+
+    // Blocking callers wait for the window to end
+    ESIRefThrottle.throttle(cls);
+    Assert.assertTrue(System.currentTimeMillis() - start >= 500);
+    Assert.assertFalse(ESIRefThrottle.isBackingOff());
+    resume.get(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testRateControllerAIMD() throws Exception {
+    ESIRefRateController controller = ESIRefRateController.get(uniqueClass("testRateControllerAIMD"));
+    Assert.assertEquals(3.0, controller.rate(3, 1, 10), 0.001);
+
+    // Additive increase at most once per interval
+    Assert.assertTrue(controller.increase(1000L, 500L, 1, 1, 10));
+    Assert.assertFalse(controller.increase(1200L, 500L, 1, 1, 10));
+    Assert.assertEquals(4.0, controller.rate(3, 1, 10), 0.001);
+
+    // Multiplicative decrease, also at most once per interval
+    Assert.assertTrue(controller.decrease(1500L, 500L, 0.5, 1, 10));
+    Assert.assertFalse(controller.decrease(1600L, 500L, 0.5, 1, 10));
+    Assert.assertEquals(2.0, controller.rate(3, 1, 10), 0.001);
+
+    // Rate stays within floor and ceiling
+    Assert.assertTrue(controller.decrease(2000L, 500L, 0.1, 1, 10));
+    Assert.assertEquals(1.0, controller.rate(3, 1, 10), 0.001);
+    Assert.assertFalse(controller.decrease(3000L, 500L, 0.1, 1, 10));
+    for (long now = 4000L; now < 20000L; now += 1000L) {
+      controller.increase(now, 500L, 1, 1, 10);
+    }
+    Assert.assertEquals(10.0, controller.rate(3, 1, 10), 0.001);
+  }
+
+  @Test
+  public void testErrorBudgetFactor() throws Exception {
+    // Use times far in the past so the budget has no effect on live throttles
+    ESIRefErrorBudget.update(25, 60, 1000L);
+    Assert.assertEquals(25, ESIRefErrorBudget.getRemain(2000L));
+    Assert.assertEquals(0.5, ESIRefErrorBudget.factor(2000L, 50, 5, 0.1), 0.001);
+
+    // A higher count for the same window is a stale response and is ignored
+    ESIRefErrorBudget.update(30, 59, 2000L);
+    Assert.assertEquals(25, ESIRefErrorBudget.getRemain(2000L));
+    ESIRefErrorBudget.update(10, 59, 2000L);
+    Assert.assertEquals(0.2, ESIRefErrorBudget.factor(2000L, 50, 5, 0.1), 0.001);
+    ESIRefErrorBudget.update(3, 58, 3000L);
+    Assert.assertEquals(0.1, ESIRefErrorBudget.factor(3000L, 50, 5, 0.1), 0.001);
+
+    // Full rate is restored once the window resets
+    Assert.assertEquals(1.0, ESIRefErrorBudget.factor(61000L, 50, 5, 0.1), 0.001);
+    Assert.assertEquals(-1, ESIRefErrorBudget.getRemain(61000L));
+  }
+
+  @Test
+  public void testEffectiveRates() throws Exception {
+    String cls = uniqueClass("testEffectiveRates");
+    Assert.assertFalse(ESIRefThrottle.getEffectiveRates()
+                                     .containsKey(cls));
+
+    // Bucket is created at the default rate
+    ESIRefThrottle.throttle(cls);
+    Assert.assertEquals(3.0, ESIRefThrottle.getEffectiveRates()
+                                           .get(cls), 0.001);
+
+    // Reloading unchanged configuration leaves the rate alone
+    ESIRefThrottle.reloadRates();
+    Assert.assertEquals(3.0, ESIRefThrottle.getEffectiveRates()
+                                           .get(cls), 0.001);
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    String cls = uniqueClass("testSnapshot");
+    for (int i = 0; i < 4; i++) {
+      ESIRefThrottle.throttle(cls);
+    }
+
+    ESIRefThrottleSnapshot snapshot = ESIRefThrottle.snapshot();
+    ESIRefThrottleSnapshot.KeyStats stats = snapshot.getKeys()
+                                                    .get(cls);
+    Assert.assertNotNull(stats);
+    Assert.assertEquals(4, stats.getAcquired());
+    Assert.assertEquals(0, stats.getTimeouts());
+    Assert.assertEquals(3.0, stats.getRate(), 0.001);
+    Assert.assertTrue(stats.getAcquiredPerSecond() > 0);
+
+    // Histogram accounts for every permit, and the last permit had to wait for a refill
+    long[] histogram = stats.getWaitHistogram();
+    Assert.assertEquals(ESIRefThrottleSnapshot.getWaitHistogramBounds().length + 1, histogram.length);
+    long total = 0;
+    for (long next : histogram) total += next;
+    Assert.assertEquals(4, total);
+    Assert.assertTrue(stats.getWaitMillis() >= 200);
+  }
+
+  @Test
+  public void testAcquireAsync() throws Exception {
+    String cls = uniqueClass("testAcquireAsync");
+
+    // Request more permits than are immediately available without blocking the caller
+    long start = System.currentTimeMillis();
+    List<CompletableFuture<Long>> permits = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      permits.add(ESIRefThrottle.acquireAsync(cls));
+    }
+    Assert.assertTrue(permits.get(0)
+                             .isDone());
+    Assert.assertFalse(permits.get(4)
+                              .isDone());
+
+    // Remaining permits are granted as tokens are refilled at the default rate of 3 per second
+    for (CompletableFuture<Long> next : permits) {
+      next.get(5, TimeUnit.SECONDS);
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start >= 500);
+    Assert.assertEquals(5, ESIRefThrottle.snapshot()
+                                         .getKeys()
+                                         .get(cls)
+                                         .getAcquired());
+    // The permit rate is measured over the last minute
+    Assert.assertEquals(5 / 60.0, ESIRefThrottle.snapshot()
+                                                .getKeys()
+                                                .get(cls)
+                                                .getAcquiredPerSecond(), 0.001);
+  }
+
+  @Test
+  public void testGlobalReserve() throws Exception {
+    // Higher priorities never leave more tokens than lower priorities, and high priority leaves none
+    Assert.assertEquals(0, ESIRefThrottle.globalReserve(ESIRefThrottle.Priority.HIGH, 10));
+    Assert.assertTrue(ESIRefThrottle.globalReserve(ESIRefThrottle.Priority.NORMAL, 10) <=
+                          ESIRefThrottle.globalReserve(ESIRefThrottle.Priority.LOW, 10));
+
+    // The reserve always leaves a token lower priority calls can take
+    Assert.assertEquals(0, ESIRefThrottle.globalReserve(ESIRefThrottle.Priority.LOW, 1));
+    Assert.assertTrue(ESIRefThrottle.globalReserve(ESIRefThrottle.Priority.LOW, 2) <= 1);
+
+    // Each call leaves at least its reserve in the bucket
+    Bucket global = Bucket4j.builder()
+                            .addLimit(ESIRefThrottle.bandwidth(10))
+                            .build();
+    for (int i = 0; i < 7; i++) {
+      Assert.assertEquals(0, ESIRefThrottle.tryGlobal(global, 3, 10));
+    }
+    Assert.assertTrue(ESIRefThrottle.tryGlobal(global, 3, 10) > 0);
+    Assert.assertEquals(3, global.getAvailableTokens());
+    Assert.assertEquals(0, ESIRefThrottle.tryGlobal(global, 2, 10));
+    Assert.assertTrue(ESIRefThrottle.tryGlobal(global, 2, 10) > 0);
+    Assert.assertEquals(2, global.getAvailableTokens());
+
+    // Calls without a reserve may take the remaining tokens
+    Assert.assertEquals(0, ESIRefThrottle.tryGlobal(global, 0, 10));
+    Assert.assertEquals(0, ESIRefThrottle.tryGlobal(global, 0, 10));
+    Assert.assertTrue(ESIRefThrottle.tryGlobal(global, 0, 10) > 0);
+  }
+
+  @Test
+  public void testGlobalStarvation() throws Exception {
+    String cls = uniqueClass("testGlobalStarvation");
+    long second = TimeUnit.NANOSECONDS.convert(1, TimeUnit.SECONDS);
+    Bucket global = Bucket4j.builder()
+                            .addLimit(ESIRefThrottle.bandwidth(10))
+                            .build();
+    global.tryConsume(10);
+
+    // A call which can not leave its reserve times out without taking a token
+    long start = System.nanoTime();
+    try {
+      ESIRefThrottle.acquireGlobal(cls, global, 10, 3, start, second / 4, 2 * second);
+      Assert.fail("Expected timeout");
+    } catch (ESIRefThrottleTimeoutException e) {
+      // expected
+    }
+    Assert.assertTrue(global.getAvailableTokens() >= 2);
+
+    // Once a call has waited long enough it ignores the reserve
+    global.tryConsume(global.getAvailableTokens());
+    start = System.nanoTime();
+    ESIRefThrottle.acquireGlobal(cls, global, 10, 10, start, 5 * second, second / 4);
+    Assert.assertTrue(System.nanoTime() - start >= second / 4);
+  }
+
+}
@@ -0,0 +1,117 @@
+package enterprises.orbital.evekit.model.alliance.sync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class AllianceShardPlannerTest {
+
+  private static final long ROTATION = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+  private static final long INTERVAL = TimeUnit.MILLISECONDS.convert(6, TimeUnit.MINUTES);
+
+  private static List<Integer> alliances(int count) {
+    List<Integer> result = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      result.add(99000000 + i * 7);
+    }
+    Collections.shuffle(result);
+    return result;
+  }
+
+  @Test
+  public void testBalancedRotation() {
+    List<Integer> alliances = alliances(3456);
+
+    // Every alliance should be refreshed exactly once per rotation, in shards of nearly equal size
+    Set<Integer> seen = new HashSet<>();
+    String context = null;
+    AllianceShardPlanner.Plan plan = null;
+    for (int i = 0; i < 10; i++) {
+      plan = AllianceShardPlanner.plan(alliances, context, ROTATION, INTERVAL, 1000, 100);
+      Assert.assertEquals(10, plan.getShardCount());
+      Assert.assertEquals(INTERVAL, plan.getInterval());
+      Assert.assertTrue(plan.getShard()
+                            .size() <= 346);
+      for (int next : plan.getShard()) {
+        if (seen.size() < alliances.size()) Assert.assertTrue(seen.add(next));
+      }
+      context = plan.getNextContext();
+    }
+    Assert.assertEquals(alliances.size(), seen.size());
+  }
+
+  @Test
+  public void testSmallList() {
+    // Lists smaller than the minimum shard size are refreshed in one run
+    List<Integer> alliances = alliances(30);
+    AllianceShardPlanner.Plan plan = AllianceShardPlanner.plan(alliances, "0", ROTATION, INTERVAL, 1000, 100);
+    Assert.assertEquals(1, plan.getShardCount());
+    Assert.assertEquals(INTERVAL, plan.getInterval());
+    Assert.assertEquals(new HashSet<>(alliances), new HashSet<>(plan.getShard()));
+  }
+
+  @Test
+  public void testCallBudget() {
+    // If a shard would exceed the per-run limit, run more often so the rotation target is still met
+    List<Integer> alliances = alliances(5000);
+    AllianceShardPlanner.Plan plan = AllianceShardPlanner.plan(alliances, null, ROTATION, INTERVAL, 250, 100);
+    Assert.assertEquals(250, plan.getShard()
+                             .size());
+    Assert.assertEquals(20, plan.getShardCount());
+    Assert.assertEquals(ROTATION / 20, plan.getInterval());
+  }
+
+  @Test
+  public void testListChanges() {
+    List<Integer> alliances = alliances(1000);
+    AllianceShardPlanner.Plan plan = AllianceShardPlanner.plan(alliances, null, ROTATION, INTERVAL, 1000, 10);
+    int next = Integer.valueOf(plan.getNextContext());
+
+    // Removing the alliance at the stored position starts the next shard at the following alliance
+    alliances.remove((Integer) next);
+    plan = AllianceShardPlanner.plan(alliances, String.valueOf(next), ROTATION, INTERVAL, 1000, 10);
+    Assert.assertEquals(next + 7, (int) plan.getShard()
+                                            .get(0));
+  }
+
+  @Test
+  public void testPrioritized() {
+    List<Integer> alliances = alliances(1000);
+    Collections.sort(alliances);
+    AllianceChangeStats.clear();
+    try {
+      // Refresh every alliance once.  Every tenth alliance changed since the previous refresh.
+      for (int i = 0; i < alliances.size(); i++) {
+        if (i % 10 == 0) AllianceChangeStats.changed(alliances.get(i));
+        AllianceChangeStats.refreshed(alliances.get(i), 1000L);
+      }
+      // A new alliance has never been refreshed and should come first
+      alliances.add(100000000);
+
+      // Volatile alliances become due sooner, so they should fill the rest of the shard
+      long now = 1000L + ROTATION / 2;
+      AllianceShardPlanner.Plan plan = AllianceShardPlanner.plan(alliances, "0", ROTATION, INTERVAL, 1000, 50,
+                                                                 id -> AllianceChangeStats.urgency(id, now, ROTATION,
+                                                                                                   4));
+      Assert.assertEquals(101, plan.getShard()
+                                   .size());
+      Assert.assertEquals(100000000, (int) plan.getShard()
+                                               .get(0));
+      for (int next : plan.getShard()
+                          .subList(1, 101)) {
+        Assert.assertEquals(0, alliances.indexOf(next) % 10);
+      }
+      // The position only advances past alliances which have never been refreshed
+      Assert.assertEquals(String.valueOf(alliances.get(0)), plan.getNextContext());
+    } finally {
+      AllianceChangeStats.clear();
+    }
+  }
+
+}
@@ -2,6 +2,7 @@ package enterprises.orbital.evekit.model.alliance.sync;
 
 import enterprises.orbital.base.OrbitalProperties;
 import enterprises.orbital.eve.esi.client.api.AllianceApi;
+import enterprises.orbital.eve.esi.client.invoker.ApiException;
 import enterprises.orbital.eve.esi.client.invoker.ApiResponse;
 import enterprises.orbital.eve.esi.client.model.GetAlliancesAllianceIdIconsOk;
 import enterprises.orbital.eve.esi.client.model.GetAlliancesAllianceIdOk;
@@ -90,6 +91,10 @@ public class ESIAllianceSyncTest extends RefTestBase {
 
     // Initialize time keeper
     OrbitalProperties.setTimeGenerator(() -> testTime);
+
+    // Start without cached alliance responses or change history
+    ESIAllianceSync.clearResponseCache();
+    AllianceChangeStats.clear();
   }
 
   @Override
@@ -112,9 +117,18 @@ public class ESIAllianceSyncTest extends RefTestBase {
                                                 .executeUpdate();
                          });
     OrbitalProperties.setTimeGenerator(null);
+    ESIAllianceSync.clearResponseCache();
     super.teardown();
   }
 
+  private static String etag(String route, int allianceID) {
+    return "\"" + route + allianceID + "\"";
+  }
+
+  private static Map<String, List<String>> etagHeaders(String route, int allianceID) {
+    return createHeaders("Expires", "Thu, 21 Dec 2017 12:00:00 GMT", "ETag", etag(route, allianceID));
+  }
+
   // Mock up server interface
   private void setupMock() throws Exception {
     // Setup Alliance endpoint mock
@@ -141,7 +155,8 @@ public class ESIAllianceSyncTest extends RefTestBase {
       allianceData.setCreatorId((Integer) testData[5]);
       allianceData.setCreatorCorporationId((Integer) testData[6]);
       allianceData.setFactionId((Integer) testData[7]);
-      ApiResponse<GetAlliancesAllianceIdOk> nextAllianceResponse = new ApiResponse<>(200, headers, allianceData);
+      ApiResponse<GetAlliancesAllianceIdOk> nextAllianceResponse = new ApiResponse<>(200, etagHeaders("a", allianceID),
+                                                                                     allianceData);
       EasyMock.expect(mockEndpoint.getAlliancesAllianceIdWithHttpInfo(allianceID, null, null))
               .andReturn(nextAllianceResponse);
     }
@@ -152,7 +167,8 @@ public class ESIAllianceSyncTest extends RefTestBase {
       GetAlliancesAllianceIdIconsOk iconData = new GetAlliancesAllianceIdIconsOk();
       iconData.setPx64x64((String) allianceIconTestData[i][1]);
       iconData.setPx128x128((String) allianceIconTestData[i][2]);
-      ApiResponse<GetAlliancesAllianceIdIconsOk> nextIconResponse = new ApiResponse<>(200, headers, iconData);
+      ApiResponse<GetAlliancesAllianceIdIconsOk> nextIconResponse = new ApiResponse<>(200, etagHeaders("i", allianceID),
+                                                                                      iconData);
       EasyMock.expect(mockEndpoint.getAlliancesAllianceIdIconsWithHttpInfo(allianceID, null, null))
               .andReturn(nextIconResponse);
     }
@@ -166,7 +182,7 @@ public class ESIAllianceSyncTest extends RefTestBase {
           corpList.add((Integer) memberData[1]);
         }
       }
-      ApiResponse<List<Integer>> nextCorpResponse = new ApiResponse<>(200, headers, corpList);
+      ApiResponse<List<Integer>> nextCorpResponse = new ApiResponse<>(200, etagHeaders("c", allianceID), corpList);
       EasyMock.expect(mockEndpoint.getAlliancesAllianceIdCorporationsWithHttpInfo(allianceID, null, null))
               .andReturn(nextCorpResponse);
     }
@@ -184,6 +200,42 @@ public class ESIAllianceSyncTest extends RefTestBase {
             .anyTimes();
   }
 
+  // Mock up server interface where every alliance is unchanged since the responses from setupMock
+  private void setupUnchangedMock() throws Exception {
+    mockEndpoint = EasyMock.createMock(AllianceApi.class);
+
+    // Setup alliance list call
+    List<Integer> allianceList = new ArrayList<>();
+    for (Object[] allianceData : allianceTestData) {
+      allianceList.add((Integer) allianceData[0]);
+    }
+    Map<String, List<String>> headers = createHeaders("Expires", "Thu, 21 Dec 2017 12:00:00 GMT");
+    ApiResponse<List<Integer>> allianceListResponse = new ApiResponse<>(200, headers, allianceList);
+    EasyMock.expect(mockEndpoint.getAlliancesWithHttpInfo(null, null))
+            .andReturn(allianceListResponse);
+
+    // Each alliance call should send the ETag from the previous response and receive "not modified"
+    for (Object[] allianceData : allianceTestData) {
+      int allianceID = (Integer) allianceData[0];
+      EasyMock.expect(mockEndpoint.getAlliancesAllianceIdWithHttpInfo(allianceID, null, etag("a", allianceID)))
+              .andThrow(new ApiException(304, etagHeaders("a", allianceID), null));
+      EasyMock.expect(mockEndpoint.getAlliancesAllianceIdIconsWithHttpInfo(allianceID, null, etag("i", allianceID)))
+              .andThrow(new ApiException(304, etagHeaders("i", allianceID), null));
+      EasyMock.expect(
+          mockEndpoint.getAlliancesAllianceIdCorporationsWithHttpInfo(allianceID, null, etag("c", allianceID)))
+              .andThrow(new ApiException(304, etagHeaders("c", allianceID), null));
+    }
+
+    ExecutorService immediateExecutor = Executors.newSingleThreadExecutor();
+    mockServer = EasyMock.createMock(ESIRefClientProvider.class);
+    EasyMock.expect(mockServer.getScheduler())
+            .andReturn(immediateExecutor)
+            .anyTimes();
+    EasyMock.expect(mockServer.getAllianceApi())
+            .andReturn(mockEndpoint)
+            .anyTimes();
+  }
+
   private void verifyDataUpdate() throws Exception {
     // Retrieve all stored alliance data (alliances, icons and members)
     List<Alliance> storedAlliances = AbstractESIRefSync.retrieveAll(testTime, (long contid, AttributeSelector at) ->
@@ -418,4 +470,48 @@ public class ESIAllianceSyncTest extends RefTestBase {
     Assert.assertEquals(schedTime, syncTracker.getScheduled());
   }
 
+  @Test
+  public void testSyncUnchanged() throws Exception {
+    setupMock();
+    EasyMock.replay(mockServer, mockEndpoint);
+
+    // Perform the first sync, which stores all data and caches responses
+    ESIAllianceSync sync = new ESIAllianceSync();
+    sync.synch(mockServer);
+    EasyMock.verify(mockServer, mockEndpoint);
+    verifyDataUpdate();
+
+    // Prepare to sync the same batch again later
+    ESIRefEndpointSyncTracker.finishTracker(
+        ESIRefEndpointSyncTracker.getUnfinishedTracker(ESIRefSyncEndpoint.REF_ALLIANCE));
+    ESIRefEndpointSyncTracker.getOrCreateUnfinishedTracker(ESIRefSyncEndpoint.REF_ALLIANCE, 1234L, "0");
+    long firstTime = testTime;
+    testTime += 1000;
+
+    // Perform the second sync, which should make conditional calls and skip all alliances
+    setupUnchangedMock();
+    EasyMock.replay(mockServer, mockEndpoint);
+    sync = new ESIAllianceSync();
+    sync.synch(mockServer);
+    EasyMock.verify(mockServer, mockEndpoint);
+
+    // Verify data is unchanged and was not evolved
+    verifyDataUpdate();
+    List<Alliance> storedAlliances = AbstractESIRefSync.retrieveAll(testTime, (long contid, AttributeSelector at) ->
+        Alliance.accessQuery(contid, 1000, false, at, AbstractESIRefSync.ANY_SELECTOR, AbstractESIRefSync.ANY_SELECTOR,
+                             AbstractESIRefSync.ANY_SELECTOR, AbstractESIRefSync.ANY_SELECTOR,
+                             AbstractESIRefSync.ANY_SELECTOR, AbstractESIRefSync.ANY_SELECTOR,
+                             AbstractESIRefSync.ANY_SELECTOR, AbstractESIRefSync.ANY_SELECTOR,
+                             AbstractESIRefSync.ANY_SELECTOR));
+    for (Alliance next : storedAlliances)
+      Assert.assertEquals(firstTime, next.getLifeStart());
+
+    // Verify tracker was updated properly
+    ESIRefEndpointSyncTracker syncTracker = ESIRefEndpointSyncTracker.getLatestFinishedTracker(
+        ESIRefSyncEndpoint.REF_ALLIANCE);
+    Assert.assertEquals(testTime, syncTracker.getSyncStart());
+    Assert.assertEquals(ESISyncState.FINISHED, syncTracker.getStatus());
+    Assert.assertEquals("Updated successfully", syncTracker.getDetail());
+  }
+
 }